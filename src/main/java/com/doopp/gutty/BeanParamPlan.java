@@ -0,0 +1,179 @@
+package com.doopp.gutty;
+
+import javax.ws.rs.FormParam;
+import javax.ws.rs.PathParam;
+import javax.ws.rs.QueryParam;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+// @BeanParam 的绑定计划，每个类只计算一次
+// 字段上有 @QueryParam, @FormParam, @PathParam 时只从对应的位置取值，
+// 没有注解的字段按 驼峰 和 蛇型 两种名字依次从 path, query, form 里取值
+final class BeanParamPlan {
+
+    private static final ClassValue<BeanParamPlan> plans = new ClassValue<BeanParamPlan>() {
+        @Override
+        protected BeanParamPlan computeValue(Class<?> clazz) {
+            return new BeanParamPlan(clazz);
+        }
+    };
+
+    private static final MethodType SETTER_TYPE = MethodType.methodType(void.class, Object.class, Object.class);
+
+    private final MethodHandle constructor;
+
+    private final BeanField[] beanFields;
+
+    static BeanParamPlan of(Class<?> clazz) {
+        return plans.get(clazz);
+    }
+
+    private BeanParamPlan(Class<?> clazz) {
+        MethodHandles.Lookup lookup = MethodHandles.lookup();
+        try {
+            Constructor<?> declaredConstructor = clazz.getDeclaredConstructor();
+            declaredConstructor.setAccessible(true);
+            this.constructor = lookup.unreflectConstructor(declaredConstructor).asType(MethodType.methodType(Object.class));
+            List<BeanField> beanFieldList = new ArrayList<>();
+            for (Class<?> c = clazz; c != null && c != Object.class; c = c.getSuperclass()) {
+                for (Field field : c.getDeclaredFields()) {
+                    int modifiers = field.getModifiers();
+                    if (Modifier.isStatic(modifiers) || Modifier.isFinal(modifiers) || Modifier.isTransient(modifiers)) {
+                        continue;
+                    }
+                    // 不支持转换的字段不绑定
+                    ParamConverters.ValueConverter converter = ParamConverters.getInstance().converter(field.getGenericType(), field.getAnnotations());
+                    if (converter != null) {
+                        beanFieldList.add(new BeanField(field, converter, setter(lookup, clazz, field)));
+                    }
+                }
+            }
+            this.beanFields = beanFieldList.toArray(new BeanField[0]);
+        }
+        catch (NoSuchMethodException | IllegalAccessException e) {
+            throw new RuntimeException("Can not bind @BeanParam " + clazz.getName(), e);
+        }
+    }
+
+    Object bind(HttpRequestView requestView) {
+        try {
+            Object bean = constructor.invokeExact();
+            for (BeanField beanField : beanFields) {
+                List<String> values = beanField.values(requestView);
+                if (values == null || values.isEmpty()) {
+                    continue;
+                }
+                Object value = beanField.converter.convert(values);
+                if (value != null) {
+                    beanField.setter.invokeExact(bean, value);
+                }
+            }
+            return bean;
+        }
+        catch (RuntimeException e) {
+            throw e;
+        }
+        catch (Throwable e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    // 有 public setter 时用 setter，否则直接写字段
+    private static MethodHandle setter(MethodHandles.Lookup lookup, Class<?> clazz, Field field) throws IllegalAccessException {
+        String setterName = "set" + Character.toUpperCase(field.getName().charAt(0)) + field.getName().substring(1);
+        try {
+            Method method = clazz.getMethod(setterName, field.getType());
+            return lookup.unreflect(method).asType(SETTER_TYPE);
+        }
+        catch (NoSuchMethodException e) {
+            field.setAccessible(true);
+            return lookup.unreflectSetter(field).asType(SETTER_TYPE);
+        }
+    }
+
+    private static String snakeCase(String name) {
+        StringBuilder builder = new StringBuilder(name.length() + 4);
+        for (char c : name.toCharArray()) {
+            if (Character.isUpperCase(c)) {
+                builder.append('_').append(Character.toLowerCase(c));
+            }
+            else {
+                builder.append(c);
+            }
+        }
+        return builder.toString();
+    }
+
+    private enum Source {
+        PATH, QUERY, FORM, ANY
+    }
+
+    private static class BeanField {
+
+        private final Source source;
+
+        private final String[] names;
+
+        private final ParamConverters.ValueConverter converter;
+
+        private final MethodHandle setter;
+
+        BeanField(Field field, ParamConverters.ValueConverter converter, MethodHandle setter) {
+            this.setter = setter;
+            this.converter = converter;
+            if (field.isAnnotationPresent(PathParam.class)) {
+                source = Source.PATH;
+                names = new String[]{field.getAnnotation(PathParam.class).value()};
+            }
+            else if (field.isAnnotationPresent(QueryParam.class)) {
+                source = Source.QUERY;
+                names = new String[]{field.getAnnotation(QueryParam.class).value()};
+            }
+            else if (field.isAnnotationPresent(FormParam.class)) {
+                source = Source.FORM;
+                names = new String[]{field.getAnnotation(FormParam.class).value()};
+            }
+            else {
+                source = Source.ANY;
+                String snakeName = snakeCase(field.getName());
+                names = snakeName.equals(field.getName())
+                        ? new String[]{field.getName()}
+                        : new String[]{field.getName(), snakeName};
+            }
+        }
+
+        List<String> values(HttpRequestView requestView) {
+            for (String name : names) {
+                List<String> values = values(requestView, name);
+                if (values != null) {
+                    return values;
+                }
+            }
+            return null;
+        }
+
+        private List<String> values(HttpRequestView requestView, String name) {
+            if (source == Source.PATH || source == Source.ANY) {
+                String value = requestView.path(name);
+                if (value != null || source == Source.PATH) {
+                    return (value == null) ? null : Collections.singletonList(value);
+                }
+            }
+            if (source == Source.QUERY || source == Source.ANY) {
+                List<String> values = requestView.query(name);
+                if (values != null || source == Source.QUERY) {
+                    return values;
+                }
+            }
+            return requestView.form(name);
+        }
+    }
+}
@@ -1,15 +1,30 @@
 package com.doopp.gutty;
 
+import com.doopp.gutty.annotation.ChunkedView;
+import com.doopp.gutty.annotation.ViewCache;
 import com.doopp.gutty.annotation.websocket.*;
+import com.doopp.gutty.json.JsonChunkedInput;
 import com.doopp.gutty.json.MessageConverter;
+import com.doopp.gutty.protobuf.ProtobufHelper;
 import com.doopp.gutty.view.ModelMap;
+import com.doopp.gutty.view.RenderedViewCache;
+import com.doopp.gutty.view.ViewChunkedInput;
 import com.doopp.gutty.view.ViewResolver;
 import com.google.inject.Injector;
+import com.google.inject.Key;
+import com.google.inject.TypeLiteral;
+import com.google.inject.name.Names;
+import com.google.protobuf.MessageLite;
+import com.google.protobuf.Parser;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.handler.codec.http.*;
 import io.netty.handler.codec.http.HttpMethod;
+import io.netty.util.CharsetUtil;
+import io.netty.util.collection.IntObjectHashMap;
+import io.netty.util.collection.IntObjectMap;
 
-import javax.ws.rs.Produces;
+import javax.ws.rs.*;
+import javax.ws.rs.ext.ParamConverterProvider;
 import javax.ws.rs.core.MediaType;
 import java.lang.annotation.Annotation;
 import java.lang.reflect.Method;
@@ -20,6 +35,10 @@ import java.util.regex.Pattern;
 
 public class Dispatcher {
 
+    private static final String APPLICATION_NDJSON = "application/x-ndjson";
+
+    private static final String APPLICATION_PROTOBUF = "application/x-protobuf";
+
     private final Map<String, HttpRoute> httpRouteMap = new HashMap<>();
     private final List<HttpRoute> patternHttpRouteList = new ArrayList<>();
 
@@ -62,7 +81,45 @@ public class Dispatcher {
         return builder.length() > 0 ? Pattern.quote(builder.toString()) : "";
     }
 
-    public byte[] executeHttpRoute(Injector injector, ChannelHandlerContext ctx, FullHttpRequest httpRequest, FullHttpResponse httpResponse) throws Exception {
+    // 创建 injector 后执行，为每个路由的参数选好转换器
+    public void prepare(Injector injector) {
+        Set<ParamConverterProvider> providers = injector.getInstance(Key.get(new TypeLiteral<Set<ParamConverterProvider>>() {}));
+        ParamConverters.getInstance().setProviders(providers);
+        List<HttpRoute> httpRoutes = new ArrayList<>(httpRouteMap.values());
+        httpRoutes.addAll(patternHttpRouteList);
+        MessageConverter messageConverter = Gutty.getInstance(injector, MessageConverter.class);
+        ViewChunkedInput.setRenderThreads(Integer.parseInt(injector.getInstance(Key.get(String.class, Names.named("gutty.view.renderThreads")))));
+        RenderedViewCache.getInstance().setMaxBytes(Long.parseLong(injector.getInstance(Key.get(String.class, Names.named("gutty.view.outputCacheSize")))));
+        // 模版的预编译和开发模式的监视
+        ViewResolver viewResolver = Gutty.getInstance(injector, ViewResolver.class);
+        if (viewResolver != null) {
+            viewResolver.prepare();
+        }
+        ProtobufHelper.setSizeLimit(Integer.parseInt(injector.getInstance(Key.get(String.class, Names.named("gutty.protobuf.maxMessageSize")))));
+        for (HttpRoute httpRoute : httpRoutes) {
+            httpRoute.prepareParamConverters();
+            httpRoute.prepareProtobufParsers();
+            // 预先准备 JSON 的参数和返回值类型
+            if (messageConverter!=null) {
+                for (Parameter parameter : httpRoute.getParameters()) {
+                    if (parameter.getAnnotations().length==0 && !isFrameworkType(parameter.getType()) && !MessageLite.class.isAssignableFrom(parameter.getType())) {
+                        messageConverter.prepare(parameter.getParameterizedType());
+                    }
+                }
+                if (methodProductsValue(httpRoute.getMethod()).contains(MediaType.APPLICATION_JSON)) {
+                    messageConverter.prepare(httpRoute.getMethod().getGenericReturnType());
+                }
+            }
+        }
+    }
+
+    // 由框架注入的参数类型
+    private static boolean isFrameworkType(Class<?> clazz) {
+        return clazz.isPrimitive() || clazz.getName().startsWith("io.netty.") || clazz.getName().startsWith("com.doopp.gutty.");
+    }
+
+    // 结果写入 httpResponse 的 content，需要分块输出时返回 HttpChunkedInput
+    public HttpChunkedInput executeHttpRoute(Injector injector, ChannelHandlerContext ctx, FullHttpRequest httpRequest, FullHttpResponse httpResponse) throws Exception {
         // get route
         HttpRoute httpRoute = this.getHttpRoute(httpRequest.method(), httpRequest.uri());
         if (httpRoute ==null) {
@@ -78,29 +135,70 @@ public class Dispatcher {
         // method invoke
         Object result = (httpRoute.getParameters().length == 0)
                 ? httpRoute.getMethod().invoke(controller)
-                : httpRoute.getMethod().invoke(controller, HttpParam.builder(injector, ctx, httpRequest, httpResponse).setModelMap(modelMap).getParams(httpRoute.getParameters(), httpRoute.getPathParamMap()));
-        // content type
-        String contentType = methodProductsValue(httpRoute.getMethod());
-        // 如果要求返回 JSON
+                : httpRoute.getMethod().invoke(controller, HttpParam.builder(injector, ctx, httpRequest, httpResponse).setModelMap(modelMap).setParamConverters(httpRoute.getParamConverters()).setProtobufParsers(httpRoute.getProtobufParsers()).getParams(httpRoute.getParameters(), httpRoute.getPathParamMap()));
+        // content type，按 Accept 从 @Produces 里选择
+        String contentType = negotiate(httpRoute, httpRequest.headers().get(HttpHeaderNames.ACCEPT));
+        // 不是 protobuf 的结果退回到 JSON
+        if (isProtobuf(contentType) && !(result instanceof MessageLite)) {
+            contentType = MediaType.APPLICATION_JSON + "; charset=UTF-8";
+        }
+        httpResponse.headers().set(HttpHeaderNames.CONTENT_TYPE, contentType);
+        if (httpRoute.getProduces().length > 1) {
+            httpResponse.headers().set(HttpHeaderNames.VARY, HttpHeaderNames.ACCEPT);
+        }
+        // protobuf 直接编码到 response 的 content
+        if (isProtobuf(contentType)) {
+            ProtobufHelper.write((MessageLite) result, httpResponse.content());
+            return null;
+        }
+        // 返回 Stream, Iterator, Cursor 时逐条输出 JSON 数组或 NDJSON
+        boolean ndjson = contentType.contains(APPLICATION_NDJSON);
+        if ((ndjson || contentType.contains(MediaType.APPLICATION_JSON)) && JsonChunkedInput.isStreamable(result)) {
+            MessageConverter messageConverter = Gutty.getInstance(injector, MessageConverter.class);
+            if (messageConverter !=null) {
+                return new HttpChunkedInput(JsonChunkedInput.of(result, messageConverter, ndjson));
+            }
+        }
+        // 如果要求返回 JSON，直接序列化到 response 的 content
         if (contentType.contains(MediaType.APPLICATION_JSON)) {
             MessageConverter messageConverter = Gutty.getInstance(injector, MessageConverter.class);
             if (messageConverter !=null) {
-                result = messageConverter.toJson(result);
+                messageConverter.write(result, httpResponse.content());
+                return null;
             }
         }
         // 如果要求返回字符串，并且有适配的模板
         else if (result instanceof String && contentType.contains(MediaType.TEXT_HTML)) {
             ViewResolver viewResolver = Gutty.getInstance(injector, ViewResolver.class);
+            // 缓存的页面不执行模版
+            ViewCache viewCache = httpRoute.getMethod().getAnnotation(ViewCache.class);
+            String viewKey = (viewResolver != null && viewCache != null)
+                    ? RenderedViewCache.key((String) result, modelMap, viewCache.value(), Gutty.getInstance(injector, MessageConverter.class))
+                    : null;
+            if (viewKey != null && RenderedViewCache.getInstance().write(viewKey, httpResponse.content())) {
+                return null;
+            }
+            // 大页面边输出边发送
+            ChunkedView chunkedView = httpRoute.getMethod().getAnnotation(ChunkedView.class);
+            if (viewResolver != null && chunkedView != null) {
+                ViewChunkedInput chunkedInput = ViewChunkedInput.render(viewResolver, modelMap, (String) result, ctx, chunkedView.chunkSize(), chunkedView.maxChunks());
+                // render 线程都在使用时一次输出
+                if (chunkedInput != null) {
+                    return new HttpChunkedInput(chunkedInput);
+                }
+            }
             if (viewResolver != null) {
-                result = viewResolver.template(modelMap, (String) result);
+                int startIndex = httpResponse.content().writerIndex();
+                viewResolver.template(modelMap, (String) result, httpResponse.content());
+                if (viewKey != null) {
+                    RenderedViewCache.getInstance().put(viewKey, httpResponse.content(), startIndex, viewCache.ttl());
+                }
+                return null;
             }
         }
-        httpResponse.headers().set(HttpHeaderNames.CONTENT_TYPE, contentType);
-        // return
-        if (result instanceof String) {
-            return ((String) result).getBytes();
-        }
-        return result.toString().getBytes();
+        // write
+        httpResponse.content().writeCharSequence(String.valueOf(result), CharsetUtil.UTF_8);
+        return null;
     }
 
     public void addSocketRoute(String requestUri, Class<?> clazz) {
@@ -206,6 +304,64 @@ public class Dispatcher {
         return Pattern.compile(pattern.toString());
     }
 
+    // 按 Accept 的 q 值选择 @Produces 里的类型，同样的 q 值按 @Produces 的顺序，没有匹配的用第一个
+    private static String negotiate(HttpRoute httpRoute, String accept) {
+        String[] produces = httpRoute.getProduces();
+        if (produces.length == 0) {
+            return MediaType.TEXT_HTML + "; charset=UTF-8";
+        }
+        String mediaType = produces[0];
+        if (produces.length > 1 && accept != null) {
+            float bestQuality = 0;
+            for (String produce : produces) {
+                float quality = acceptQuality(accept, produce);
+                if (quality > bestQuality) {
+                    bestQuality = quality;
+                    mediaType = produce;
+                }
+            }
+        }
+        if (mediaType.contains("charset") || isProtobuf(mediaType)) {
+            return mediaType;
+        }
+        return mediaType + "; charset=UTF-8";
+    }
+
+    // mediaType 在 Accept 里的 q 值，精确匹配优先于 type/* 和 */*
+    private static float acceptQuality(String accept, String mediaType) {
+        String type = mediaType.split(";")[0].trim().toLowerCase();
+        float quality = 0;
+        int specificity = -1;
+        for (String range : accept.split(",")) {
+            String[] parts = range.split(";");
+            String rangeType = parts[0].trim().toLowerCase();
+            int rangeSpecificity = rangeType.equals(type) ? 2
+                    : rangeType.endsWith("/*") && type.startsWith(rangeType.substring(0, rangeType.length() - 1)) ? 1
+                    : rangeType.equals("*/*") ? 0 : -1;
+            if (rangeSpecificity <= specificity) {
+                continue;
+            }
+            float rangeQuality = 1;
+            for (int ii = 1; ii < parts.length; ii++) {
+                String parameter = parts[ii].trim();
+                if (parameter.startsWith("q=")) {
+                    try {
+                        rangeQuality = Float.parseFloat(parameter.substring(2));
+                    }
+                    catch (NumberFormatException ignored) {
+                    }
+                }
+            }
+            specificity = rangeSpecificity;
+            quality = rangeQuality;
+        }
+        return quality;
+    }
+
+    private static boolean isProtobuf(String contentType) {
+        return contentType.contains(APPLICATION_PROTOBUF) || contentType.contains("application/protobuf");
+    }
+
     public String methodProductsValue(Method method) {
         String contentType = MediaType.TEXT_HTML;
         if (method != null && method.isAnnotationPresent(Produces.class)) {
@@ -231,12 +387,35 @@ public class Dispatcher {
         private List<Method> closeMethodList;
         private List<Method> pingMethodList;
         private List<Method> pongMethodList;
+        // protobuf 类型 id => 处理这个类型的方法
+        private IntObjectMap<Method> protobufMethodMap;
+        private boolean compression = true;
+        private int maxMessageSize = 5 * 1024 * 1024;
+        private boolean aggregate = true;
+        private boolean streaming = false;
+        private int flushDelay = 0;
+        private int flushBytes = 16 * 1024;
+        private boolean blocking = false;
+        private Set<Method> blockingMethods = new HashSet<>();
         private SocketRoute() {
         }
         public SocketRoute(String key, Class<?> clazz) {
             this.key = key;
             this.clazz = clazz;
+            Socket socketAnnotation = clazz.getAnnotation(Socket.class);
+            if (socketAnnotation!=null) {
+                this.compression = socketAnnotation.compression();
+                this.maxMessageSize = socketAnnotation.maxMessageSize();
+                this.aggregate = socketAnnotation.aggregate();
+                this.streaming = socketAnnotation.streaming();
+                this.flushDelay = socketAnnotation.flushDelay();
+                this.flushBytes = socketAnnotation.flushBytes();
+            }
+            this.blocking = clazz.isAnnotationPresent(Blocking.class);
             for (Method method : clazz.getMethods()) {
+                if (method.isAnnotationPresent(Blocking.class)) {
+                    blockingMethods.add(method);
+                }
                 if (method.getAnnotation(Open.class)!=null) {
                     if (openMethodList==null) {
                         openMethodList = new ArrayList<>();
@@ -261,6 +440,14 @@ public class Dispatcher {
                     }
                     textMethodList.add(method);
                 }
+                else if (method.getAnnotation(BinaryMessage.class)!=null && protobufTypeId(method)>=0) {
+                    if (protobufMethodMap==null) {
+                        protobufMethodMap = new IntObjectHashMap<>();
+                    }
+                    if (protobufMethodMap.put(protobufTypeId(method), method)!=null) {
+                        throw new RuntimeException("Duplicate protobuf frame type " + protobufTypeId(method) + " in " + clazz.getName());
+                    }
+                }
                 else if (method.getAnnotation(BinaryMessage.class)!=null) {
                     if (binaryMethodList==null) {
                         binaryMethodList = new ArrayList<>();
@@ -293,6 +480,16 @@ public class Dispatcher {
                 }
             }
         }
+        // 方法里 @ProtobufFrame 参数的类型 id
+        private static int protobufTypeId(Method method) {
+            for (Parameter parameter : method.getParameters()) {
+                ProtobufFrame protobufFrame = parameter.getAnnotation(ProtobufFrame.class);
+                if (protobufFrame!=null) {
+                    return protobufFrame.value();
+                }
+            }
+            return -1;
+        }
         public Map<String, String> getPathParamMap() {
             Map<String, String> pathParamMap = new HashMap<>();
             if (pathFields==null || pathValues==null || pathFields.length!=pathValues.length) {
@@ -348,6 +545,45 @@ public class Dispatcher {
         public List<Method> getPongMethodList() {
             return pongMethodList;
         }
+        public Method getProtobufMethod(int typeId) {
+            return (protobufMethodMap==null) ? null : protobufMethodMap.get(typeId);
+        }
+        public boolean hasProtobufMethod() {
+            return protobufMethodMap!=null;
+        }
+        public boolean isCompression() {
+            return compression;
+        }
+        public int getMaxMessageSize() {
+            return maxMessageSize;
+        }
+        public boolean isAggregate() {
+            return aggregate;
+        }
+        public boolean isStreaming() {
+            return streaming;
+        }
+        public int getFlushDelay() {
+            return flushDelay;
+        }
+        public int getFlushBytes() {
+            return flushBytes;
+        }
+        // 要调用的方法里有 @Blocking 的
+        public boolean isBlocking(List<Method> methodList) {
+            if (blocking) {
+                return true;
+            }
+            if (blockingMethods.isEmpty() || methodList==null) {
+                return false;
+            }
+            for (Method method : methodList) {
+                if (blockingMethods.contains(method)) {
+                    return true;
+                }
+            }
+            return false;
+        }
     }
 
     public static class HttpRoute {
@@ -358,6 +594,9 @@ public class Dispatcher {
         private Parameter[] parameters;
         private String[] pathFields;
         private String[] pathValues;
+        private ParamConverters.ValueConverter[] paramConverters;
+        private String[] produces = new String[0];
+        private Parser<?>[] protobufParsers;
         private HttpRoute() {
         }
         HttpRoute(String key, Class<?> clazz, Method method, Parameter[] parameters) {
@@ -365,6 +604,18 @@ public class Dispatcher {
             this.clazz = clazz;
             this.method = method;
             this.parameters = parameters;
+            // @Produces({"application/json", "application/x-protobuf"}) 或者 @Produces("application/json, application/x-protobuf")
+            if (method.isAnnotationPresent(Produces.class)) {
+                List<String> produceList = new ArrayList<>();
+                for (String value : method.getAnnotation(Produces.class).value()) {
+                    for (String produce : value.split(",")) {
+                        if (!produce.trim().isEmpty()) {
+                            produceList.add(produce.trim());
+                        }
+                    }
+                }
+                this.produces = produceList.toArray(new String[0]);
+            }
             if (key.contains("{")) {
                 this.uriPattern = parseUri(key);
                 Matcher matcher = this.uriPattern.matcher(this.key);
@@ -422,6 +673,44 @@ public class Dispatcher {
         public Method getMethod() {
             return method;
         }
+        // query, form, path, header, cookie 参数的转换器，不支持的类型在启动时报错
+        void prepareParamConverters() {
+            ParamConverters.ValueConverter[] converters = new ParamConverters.ValueConverter[parameters.length];
+            for (int ii = 0; ii < parameters.length; ii++) {
+                Parameter parameter = parameters[ii];
+                if (parameter.isAnnotationPresent(QueryParam.class) || parameter.isAnnotationPresent(FormParam.class)
+                        || parameter.isAnnotationPresent(PathParam.class) || parameter.isAnnotationPresent(HeaderParam.class)
+                        || parameter.isAnnotationPresent(CookieParam.class)) {
+                    converters[ii] = ParamConverters.getInstance().converter(parameter.getParameterizedType(), parameter.getAnnotations());
+                    if (converters[ii] == null) {
+                        throw new RuntimeException("No ParamConverter for parameter " + parameter + " of " + clazz.getName() + "." + method.getName());
+                    }
+                }
+            }
+            this.paramConverters = converters;
+        }
+        // protobuf 参数的 Parser，请求时不再反射
+        void prepareProtobufParsers() {
+            Parser<?>[] parsers = null;
+            for (int ii = 0; ii < parameters.length; ii++) {
+                if (MessageLite.class.isAssignableFrom(parameters[ii].getType())) {
+                    if (parsers == null) {
+                        parsers = new Parser<?>[parameters.length];
+                    }
+                    parsers[ii] = ProtobufHelper.parser(parameters[ii].getType());
+                }
+            }
+            this.protobufParsers = parsers;
+        }
+        public Parser<?>[] getProtobufParsers() {
+            return protobufParsers;
+        }
+        public String[] getProduces() {
+            return produces;
+        }
+        public ParamConverters.ValueConverter[] getParamConverters() {
+            return paramConverters;
+        }
         public void setParameters(Parameter[] parameters) {
             this.parameters = parameters;
         }
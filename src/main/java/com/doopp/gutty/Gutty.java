@@ -9,6 +9,7 @@ import com.doopp.gutty.view.ViewResolver;
 import com.google.inject.*;
 import com.google.inject.Module;
 import com.google.inject.binder.AnnotatedBindingBuilder;
+import com.google.inject.multibindings.Multibinder;
 import com.google.inject.name.Names;
 import org.apache.ibatis.plugin.Interceptor;
 import org.apache.ibatis.transaction.jdbc.JdbcTransactionFactory;
@@ -18,6 +19,7 @@ import javax.inject.Named;
 import javax.inject.Provider;
 import javax.sql.DataSource;
 import javax.ws.rs.*;
+import javax.ws.rs.ext.ParamConverterProvider;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.lang.annotation.Annotation;
@@ -43,6 +45,9 @@ public class Gutty {
     // filer  uri=>filter map
     private final Map<String, Class<? extends Filter>> filterMap = new HashMap<>();
 
+    // 参数转换 ParamConverterProvider
+    private final List<Class<? extends ParamConverterProvider>> paramConverterProviders = new ArrayList<>();
+
     // 载入配置
     public Gutty loadProperties(String... propertiesFiles) {
         Properties properties = new Properties();
@@ -62,11 +67,45 @@ public class Gutty {
         properties.setProperty("gutty.httpHost",  httpHost==null  ? "127.0.0.1" : httpHost);
         properties.setProperty("gutty.httpPort",  httpPort==null  ? "8080"      : httpPort);
         properties.setProperty("gutty.httpsPort", httpsPort==null ? "8081"      : httpsPort);
+        // websocket permessage-deflate, level 0 disable
+        defaultProperty(properties, "gutty.websocket.compressionLevel", "6");
+        defaultProperty(properties, "gutty.websocket.compressionWindowSize", "15");
+        defaultProperty(properties, "gutty.websocket.compressionMinSize", "256");
+        // websocket outbound queue, size 0 disable
+        defaultProperty(properties, "gutty.websocket.outboundQueueSize", "0");
+        defaultProperty(properties, "gutty.websocket.slowConsumerPolicy", "DROP_OLDEST");
+        // websocket heartbeat (seconds), pingInterval 0 disable, pongTimeout 0 never evict
+        defaultProperty(properties, "gutty.websocket.pingInterval", "0");
+        defaultProperty(properties, "gutty.websocket.pongTimeout", "10");
+        // @Blocking websocket methods worker threads, 0 is cpu * 2
+        defaultProperty(properties, "gutty.websocket.workerThreads", "0");
+        // jackson afterburner, need jackson-module-afterburner
+        defaultProperty(properties, "gutty.jackson.afterburner", "false");
+        // template, development mode watches template directories and shows errors in the page
+        defaultProperty(properties, "gutty.view.development", "false");
+        // parse all templates before the port is bound
+        defaultProperty(properties, "gutty.view.precompile", "false");
+        // template update check delay (seconds)
+        defaultProperty(properties, "gutty.view.updateDelay", "60");
+        // max cached templates
+        defaultProperty(properties, "gutty.view.cacheSize", "200");
+        // @ViewCache rendered pages max total bytes
+        defaultProperty(properties, "gutty.view.outputCacheSize", "16777216");
+        // @ChunkedView render threads, 0 is cpu * 2, pages render buffered when all threads are busy
+        defaultProperty(properties, "gutty.view.renderThreads", "0");
+        // protobuf message max size (bytes), 0 is protobuf default limit
+        defaultProperty(properties, "gutty.protobuf.maxMessageSize", "0");
         modules.add(binder -> Names.bindProperties(binder, properties));
         // return
         return this;
     }
 
+    private static void defaultProperty(Properties properties, String key, String defaultValue) {
+        if (properties.getProperty(key)==null) {
+            properties.setProperty(key, defaultValue);
+        }
+    }
+
     // 添加 module 的接口
     public Gutty addModules(Module... modules) {
         Collections.addAll(this.modules, modules);
@@ -114,6 +153,12 @@ public class Gutty {
         return this;
     }
 
+    // 参数转换，在内置的转换之前使用
+    public Gutty addParamConverter(Class<? extends ParamConverterProvider> clazz) {
+        paramConverterProviders.add(clazz);
+        return this;
+    }
+
     // 启动服务
     public void start() {
         // 获取包下的所有类
@@ -136,6 +181,8 @@ public class Gutty {
 
     // 启动 netty
     private void startNetty(Injector injector) {
+        // 路由参数的转换器
+        Dispatcher.getInstance().prepare(injector);
         // 启动 netty
         Netty netty = injector.getInstance(Netty.class);
         // 创建 injector 后执行
@@ -208,6 +255,11 @@ public class Gutty {
                 for(Class<?> bindClass : componentClassMap.keySet()) {
                     this.bind(binder, bindClass, componentClassMap.get(bindClass));
                 }
+                // 其他 module 也可以用 Multibinder 添加
+                Multibinder<ParamConverterProvider> paramConverterBinder = Multibinder.newSetBinder(binder, ParamConverterProvider.class);
+                for (Class<? extends ParamConverterProvider> providerClass : paramConverterProviders) {
+                    paramConverterBinder.addBinding().to(providerClass);
+                }
             }
             // bind class
             private <T> void bind(Binder binder, Class<T> bindClass, Class<?> toClass) {
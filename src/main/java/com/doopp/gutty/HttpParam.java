@@ -5,6 +5,8 @@ import com.doopp.gutty.annotation.websocket.ProtobufFrame;
 import com.doopp.gutty.annotation.FileParam;
 import com.doopp.gutty.annotation.RequestAttribute;
 import com.doopp.gutty.json.MessageConverter;
+import com.doopp.gutty.protobuf.ProtobufHelper;
+import com.google.protobuf.Parser;
 import com.doopp.gutty.view.ModelMap;
 import com.google.inject.Injector;
 import io.netty.buffer.ByteBuf;
@@ -15,7 +17,6 @@ import io.netty.handler.codec.http.multipart.*;
 import io.netty.handler.codec.http.websocketx.*;
 import io.netty.util.Attribute;
 import io.netty.util.AttributeKey;
-import io.netty.util.CharsetUtil;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -24,10 +25,8 @@ import javax.ws.rs.core.MediaType;
 import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
-import java.lang.reflect.Method;
 import java.lang.reflect.Parameter;
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
+import java.lang.reflect.Type;
 import java.util.*;
 
 public class HttpParam {
@@ -41,6 +40,9 @@ public class HttpParam {
     private ChannelHandlerContext ctx;
     private Injector injector;
     private ModelMap modelMap;
+    private ParamConverters.ValueConverter[] paramConverters;
+
+    private Parser<?>[] protobufParsers;
 
     private HttpParam() {}
 
@@ -67,48 +69,25 @@ public class HttpParam {
         return this;
     }
 
-    public HttpParam setModelMap(ModelMap modelMap) {
-        this.modelMap = modelMap;
+    public HttpParam setParamConverters(ParamConverters.ValueConverter[] paramConverters) {
+        this.paramConverters = paramConverters;
         return this;
     }
 
-    // http headers
-    private Map<String, String> headerParams;
-    // cookies
-    private Map<String, String> cookieParams;
-    // path params
-    private Map<String, String> pathParams;
-    // query params
-    private Map<String, List<String>> queryParams;
-    // form params
-    private Map<String, List<String>> formParams;
-    // file params
-    private Map<String, List<FileUpload>> fileParams;
+    public HttpParam setProtobufParsers(Parser<?>[] protobufParsers) {
+        this.protobufParsers = protobufParsers;
+        return this;
+    }
 
-    private void resetParams() {
-        // http headers
-        headerParams = new HashMap<>();
-        // cookies
-        cookieParams = new HashMap<>();
-        // path params
-        pathParams = new HashMap<>();
-        // query params
-        queryParams = new HashMap<>();
-        // form params
-        formParams = new HashMap<>();
-        // file params
-        fileParams = new HashMap<>();
+    public HttpParam setModelMap(ModelMap modelMap) {
+        this.modelMap = modelMap;
+        return this;
     }
 
     public Object[] getParams(Parameter[] parameters, Map<String, String> pathParams) {
 
-        this.resetParams();
-
-        this.buildHeaderParams();
-        this.buildCookieParams();
-        // this.buildPathParams(pathParams);
-        this.buildQueryParams();
-        this.buildFormParams();
+        // 请求的各个部分在用到时才解析
+        HttpRequestView requestView = new HttpRequestView(httpRequest, pathParams);
 
         Object[] params = new Object[parameters.length];
 
@@ -144,6 +123,14 @@ public class HttpParam {
             else if (parameterClazz == CloseWebSocketFrame.class && webSocketFrame instanceof CloseWebSocketFrame) {
                 params[ii] = webSocketFrame;
             }
+            // continuation websocket frame
+            else if (parameterClazz == ContinuationWebSocketFrame.class && webSocketFrame instanceof ContinuationWebSocketFrame) {
+                params[ii] = webSocketFrame;
+            }
+            // websocket frame content, streaming 的分片
+            else if (parameterClazz == ByteBuf.class && webSocketFrame != null) {
+                params[ii] = webSocketFrame.content();
+            }
             // Channel
             else if (parameterClazz == Channel.class) {
                 params[ii] = ctx.channel();
@@ -164,43 +151,51 @@ public class HttpParam {
             else if (parameterClazz == HttpHeaders.class) {
                 params[ii] = httpRequest.headers();
             }
+            // request view
+            else if (parameterClazz == HttpRequestView.class) {
+                params[ii] = requestView;
+            }
             // Request Attribute
             else if (parameter.getAnnotation(RequestAttribute.class) != null) {
                 String annotationKey = parameter.getAnnotation(RequestAttribute.class).value();
                 Attribute<Object> attr = ctx.channel().attr(AttributeKey.valueOf(annotationKey));
                 params[ii] = (attr!=null) ? attr.get() : null;
             }
+            // BeanParam : query, form, path 参数绑定到一个对象
+            else if (parameter.getAnnotation(BeanParam.class) != null) {
+                params[ii] = BeanParamPlan.of(parameterClazz).bind(requestView);
+            }
             // CookieParam : Set<Cookie>
             else if (parameter.getAnnotation(CookieParam.class) != null) {
                 String annotationKey = parameter.getAnnotation(CookieParam.class).value();
-                params[ii] = baseParamCase(cookieParams.get(annotationKey), parameterClazz);
+                params[ii] = valueParamCase(ii, parameter, requestView.cookie(annotationKey));
             }
             // HeaderParam : String
             else if (parameter.getAnnotation(HeaderParam.class) != null) {
                 String annotationKey = parameter.getAnnotation(HeaderParam.class).value();
-                params[ii] = baseParamCase(headerParams.get(annotationKey), parameterClazz);
+                params[ii] = valueParamCase(ii, parameter, requestView.header(annotationKey));
             }
             // PathParam
             else if (parameter.getAnnotation(PathParam.class) != null) {
                 String annotationKey = parameter.getAnnotation(PathParam.class).value();
-                params[ii] = baseParamCase(pathParams.get(annotationKey), parameterClazz);
+                params[ii] = valueParamCase(ii, parameter, requestView.path(annotationKey));
             }
             // QueryParam
             else if (parameter.getAnnotation(QueryParam.class) != null) {
                 String annotationKey = parameter.getAnnotation(QueryParam.class).value();
-                params[ii] = listParamCase(queryParams.get(annotationKey), parameterClazz);
+                params[ii] = valueParamCase(ii, parameter, requestView.query(annotationKey));
             }
             // FormParam
             else if (parameter.getAnnotation(FormParam.class) != null) {
                 String annotationKey = parameter.getAnnotation(FormParam.class).value();
-                params[ii] = listParamCase(formParams.get(annotationKey), parameterClazz);
+                params[ii] = valueParamCase(ii, parameter, requestView.form(annotationKey));
             }
             // upload file
             else if (parameter.getAnnotation(FileParam.class) != null) {
                 String annotationKey = parameter.getAnnotation(FileParam.class).value();
                 String annotationPath = parameter.getAnnotation(FileParam.class).path();
                 try {
-                    params[ii] = fileParamCast(fileParams.get(annotationKey), annotationPath, parameterClazz);
+                    params[ii] = fileParamCast(requestView.file(annotationKey), annotationPath, parameterClazz);
                 }
                 catch (IOException e) {
                     throw new RuntimeException(e);
@@ -208,19 +203,25 @@ public class HttpParam {
             }
             // json
             else if (httpRequest.headers().get(HttpHeaderNames.CONTENT_TYPE) !=null && httpRequest.headers().get(HttpHeaderNames.CONTENT_TYPE).contains(MediaType.APPLICATION_JSON)) {
-                params[ii] = jsonParamCase(httpRequest.content(), parameterClazz);
+                params[ii] = jsonParamCase(httpRequest.content(), parameter.getParameterizedType());
             }
             // protobuf
             else if (httpRequest.headers().get(HttpHeaderNames.CONTENT_TYPE) !=null && httpRequest.headers().get(HttpHeaderNames.CONTENT_TYPE).contains("application/x-protobuf")) {
-                params[ii] = protobufParamCase(httpRequest.content(), parameterClazz);
+                params[ii] = (protobufParsers != null && protobufParsers[ii] != null)
+                        ? ProtobufHelper.parse(httpRequest.content(), protobufParsers[ii])
+                        : protobufParamCase(httpRequest.content(), parameterClazz);
             }
             // socket json
             else if (parameter.getAnnotation(JsonFrame.class) != null && webSocketFrame instanceof TextWebSocketFrame) {
-                params[ii] = jsonParamCase(webSocketFrame.content(), parameterClazz);
+                params[ii] = jsonParamCase(webSocketFrame.content(), parameter.getParameterizedType());
             }
             // socket protobuf
             else if (parameter.getAnnotation(ProtobufFrame.class) != null && webSocketFrame instanceof BinaryWebSocketFrame) {
-                params[ii] = protobufParamCase(webSocketFrame.content(), parameterClazz);
+                // 带类型 id 的帧去掉开头的 id
+                ByteBuf content = (parameter.getAnnotation(ProtobufFrame.class).value() >= 0)
+                        ? ProtobufHelper.payload(webSocketFrame.content())
+                        : webSocketFrame.content();
+                params[ii] = protobufParamCase(content, parameterClazz);
             }
             // null
             else {
@@ -230,140 +231,37 @@ public class HttpParam {
         return params;
     }
 
-    private <T> T jsonParamCase(ByteBuf content, Class<T> parameterClazz) {
+    private Object jsonParamCase(ByteBuf content, Type parameterType) {
         // MessageConverter messageConverter = injector.getInstance(MessageConverter.class);
         MessageConverter messageConverter = Gutty.getInstance(injector, MessageConverter.class);
         if (messageConverter == null) {
             return null;
         }
-        byte[] bytes = new byte[content.capacity()];
-        content.readBytes(bytes);
-        return messageConverter.fromJson(new String(bytes), parameterClazz);
+        return messageConverter.read(content, parameterType);
     }
 
     private <T> T protobufParamCase(ByteBuf content, Class<T> parameterClazz) {
-        try {
-            Method method = parameterClazz.getMethod("parseFrom", byte[].class);
-            byte[] bytes = new byte[content.readableBytes()];
-            content.readBytes(bytes);
-            return parameterClazz.cast(method.invoke(parameterClazz, (Object) bytes));
-        }
-        catch (Exception e) {
-            throw new RuntimeException(e);
-        }
+        return ProtobufHelper.parse(content, parameterClazz);
     }
 
-    private void queryObjectParamCase() {
-
+    // 路由启动时选好的转换器，没有时按参数类型查找（有缓存）
+    private Object valueParamCase(int index, Parameter parameter, String value) {
+        return paramConverter(index, parameter).convert(value);
     }
 
-    private <T> T baseParamCase(String value, Class<T> clazz) {
-        if (value==null) {
-            return null;
-        }
-        // Long
-        else if (clazz == Long.class || clazz==long.class) {
-            return clazz.cast(Long.valueOf(value));
-        }
-        // Integer
-        else if (clazz == Integer.class || clazz==int.class) {
-            return clazz.cast(Integer.valueOf(value));
-        }
-        // Boolean
-        else if (clazz == Boolean.class || clazz==boolean.class) {
-            return clazz.cast(Boolean.valueOf(value));
-        }
-        // String
-        else if (clazz == String.class) {
-            return clazz.cast(value);
-        }
-        // Float
-        else if (clazz == Float.class || clazz==float.class) {
-            return clazz.cast(Float.valueOf(value));
-        }
-        // Double
-        else if (clazz == Double.class || clazz==double.class) {
-            return clazz.cast(Double.valueOf(value));
-        }
-        // Short
-        else if (clazz == Short.class || clazz==short.class) {
-            return clazz.cast(Short.valueOf(value));
-        }
-        // Short
-        else if (clazz == Date.class) {
-            SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
-            try {
-                return clazz.cast(format.parse(value));
-            }
-            catch (ParseException e) {
-                return null;
-            }
-        }
-        else {
-            return clazz.cast(value);
-        }
+    private Object valueParamCase(int index, Parameter parameter, List<String> values) {
+        return paramConverter(index, parameter).convert(values);
     }
 
-    private <T> T listParamCase(List<String> values, Class<T> clazz) {
-        if (values == null || values.size() < 1) {
-            return null;
+    private ParamConverters.ValueConverter paramConverter(int index, Parameter parameter) {
+        if (paramConverters != null && paramConverters[index] != null) {
+            return paramConverters[index];
         }
-        // List.class.isAssignableFrom(clazz)
-        if (clazz.isArray()) {
-            // Long
-            if (clazz == Long[].class || clazz==long[].class) {
-                List<Long> resultList = new ArrayList<>();
-                for (int ii=0; ii<values.size(); ii++) {
-                    resultList.add(ii, baseParamCase(values.get(ii), Long.class));
-                }
-                return clazz.cast(resultList.toArray(new Long[0]));
-            }
-            // Integer
-            else if (clazz == Integer[].class || clazz==int[].class) {
-                List<Integer> resultList = new ArrayList<>();
-                for (int ii=0; ii<values.size(); ii++) {
-                    resultList.add(ii, baseParamCase(values.get(ii), Integer.class));
-                }
-                return clazz.cast(resultList.toArray(new Integer[0]));
-            }
-            // Boolean
-            else if (clazz == Boolean[].class || clazz==boolean[].class) {
-                List<Boolean> resultList = new ArrayList<>();
-                for (int ii=0; ii<values.size(); ii++) {
-                    resultList.add(ii, baseParamCase(values.get(ii), Boolean.class));
-                }
-                return clazz.cast(resultList.toArray(new Boolean[0]));
-            }
-            // String
-            else if (clazz == String[].class) {
-                return clazz.cast(values);
-            }
-            // Float
-            else if (clazz == Float[].class || clazz==float[].class) {
-                List<Float> resultList = new ArrayList<>();
-                for (int ii=0; ii<values.size(); ii++) {
-                    resultList.add(ii, baseParamCase(values.get(ii), Float.class));
-                }
-                return clazz.cast(resultList.toArray(new Float[0]));
-            }
-            // Double
-            else if (clazz == Double[].class || clazz==double[].class) {
-                List<Double> resultList = new ArrayList<>();
-                for (int ii=0; ii<values.size(); ii++) {
-                    resultList.add(ii, baseParamCase(values.get(ii), Double.class));
-                }
-                return clazz.cast(resultList.toArray(new Double[0]));
-            }
-            // Short
-            else if (clazz == Short[].class || clazz==short[].class) {
-                List<Short> resultList = new ArrayList<>();
-                for (int ii=0; ii<values.size(); ii++) {
-                    resultList.add(ii, baseParamCase(values.get(ii), Short.class));
-                }
-                return clazz.cast(resultList.toArray(new Short[0]));
-            }
+        ParamConverters.ValueConverter valueConverter = ParamConverters.getInstance().converter(parameter.getParameterizedType(), parameter.getAnnotations());
+        if (valueConverter == null) {
+            throw new IllegalArgumentException("No ParamConverter for parameter " + parameter + " (" + parameter.getParameterizedType() + ")");
         }
-        return baseParamCase(values.get(0), clazz);
+        return valueConverter;
     }
 
     private <T> T fileParamCast(List<FileUpload> fileParams, String path, Class<T> clazz) throws IOException {
@@ -434,59 +332,4 @@ public class HttpParam {
         }
         catch(Exception ignored) {}
     }
-
-    private void buildHeaderParams() {
-        if (httpRequest.headers()!=null) {
-            for (Map.Entry<String, String> header : httpRequest.headers()) {
-                headerParams.put(header.getKey(), header.getValue());
-            }
-        }
-    }
-
-    private void buildCookieParams() {
-        if (httpRequest.headers().get("cookie")!=null) {
-            String[] allCookie = httpRequest.headers().get("cookie").split(";");
-            for(String cookie : allCookie) {
-                int iof = cookie.indexOf("=");
-                if (iof<1) {
-                    continue;
-                }
-                cookieParams.put(cookie.substring(0, iof).trim(), cookie.substring(iof+1).trim());
-            }
-        }
-    }
-
-    private void buildQueryParams() {
-        QueryStringDecoder queryStringDecoder = new QueryStringDecoder(this.httpRequest.uri());
-        for (Map.Entry<String, List<String>> p : queryStringDecoder.parameters().entrySet()) {
-            queryParams.put(p.getKey().trim(), p.getValue());
-        }
-    }
-
-    private void buildPathParams(Map<String, String> pathParams) {
-        this.pathParams = pathParams;
-    }
-
-    private void buildFormParams() {
-        if (httpRequest.content() != null) {
-            httpRequest.retain();
-            // set Request Decoder
-            HttpPostRequestDecoder postDecoder = new HttpPostRequestDecoder(new DefaultHttpDataFactory(false), httpRequest, CharsetUtil.UTF_8);
-            // loop data
-            for (InterfaceHttpData data : postDecoder.getBodyHttpDatas()) {
-                String name = data.getName();
-                // 表单
-                if (name!=null && data.getHttpDataType() == InterfaceHttpData.HttpDataType.Attribute) {
-                    formParams.computeIfAbsent(name, k -> new ArrayList<>())
-                            .add(((MemoryAttribute) data).getValue());
-                }
-                // 上传文件的内容
-                else if (name!=null && data.getHttpDataType() == InterfaceHttpData.HttpDataType.FileUpload) {
-                    fileParams.computeIfAbsent(name, k -> new ArrayList<>())
-                            .add(((MemoryFileUpload) data).retain());
-                }
-            }
-            postDecoder.destroy();
-        }
-    }
 }
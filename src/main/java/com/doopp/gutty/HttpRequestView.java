@@ -0,0 +1,129 @@
+package com.doopp.gutty;
+
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.QueryStringDecoder;
+import io.netty.handler.codec.http.multipart.*;
+import io.netty.util.CharsetUtil;
+
+import java.util.*;
+
+// 一个请求的参数，用到哪一部分才解析哪一部分，解析结果在这个请求里缓存
+// header 直接读取 netty 的 HttpHeaders，不区分大小写
+public class HttpRequestView {
+
+    private final FullHttpRequest httpRequest;
+
+    private final Map<String, String> pathParams;
+
+    // cookies
+    private Map<String, String> cookieParams;
+    // query params
+    private Map<String, List<String>> queryParams;
+    // form params
+    private Map<String, List<String>> formParams;
+    // file params
+    private Map<String, List<FileUpload>> fileParams;
+
+    public HttpRequestView(FullHttpRequest httpRequest, Map<String, String> pathParams) {
+        this.httpRequest = httpRequest;
+        this.pathParams = (pathParams==null) ? Collections.emptyMap() : pathParams;
+    }
+
+    public FullHttpRequest getHttpRequest() {
+        return httpRequest;
+    }
+
+    public String header(String name) {
+        return httpRequest.headers().get(name);
+    }
+
+    public String cookie(String name) {
+        if (cookieParams == null) {
+            cookieParams = decodeCookies();
+        }
+        return cookieParams.get(name);
+    }
+
+    public String path(String name) {
+        return pathParams.get(name);
+    }
+
+    public List<String> query(String name) {
+        if (queryParams == null) {
+            queryParams = decodeQuery();
+        }
+        return queryParams.get(name);
+    }
+
+    public List<String> form(String name) {
+        if (formParams == null) {
+            decodeBody();
+        }
+        return formParams.get(name);
+    }
+
+    public List<FileUpload> file(String name) {
+        if (fileParams == null) {
+            decodeBody();
+        }
+        return fileParams.get(name);
+    }
+
+    private Map<String, String> decodeCookies() {
+        String cookieHeader = httpRequest.headers().get(HttpHeaderNames.COOKIE);
+        if (cookieHeader == null) {
+            return Collections.emptyMap();
+        }
+        Map<String, String> cookies = new HashMap<>();
+        for(String cookie : cookieHeader.split(";")) {
+            int iof = cookie.indexOf("=");
+            if (iof<1) {
+                continue;
+            }
+            cookies.put(cookie.substring(0, iof).trim(), cookie.substring(iof+1).trim());
+        }
+        return cookies;
+    }
+
+    private Map<String, List<String>> decodeQuery() {
+        // 没有 query string 时不创建 decoder
+        if (httpRequest.uri().indexOf('?') < 0) {
+            return Collections.emptyMap();
+        }
+        Map<String, List<String>> query = new HashMap<>();
+        QueryStringDecoder queryStringDecoder = new QueryStringDecoder(httpRequest.uri());
+        for (Map.Entry<String, List<String>> p : queryStringDecoder.parameters().entrySet()) {
+            query.put(p.getKey().trim(), p.getValue());
+        }
+        return query;
+    }
+
+    // form 和上传的文件一起解析
+    private void decodeBody() {
+        formParams = new HashMap<>();
+        fileParams = new HashMap<>();
+        // 没有 body 的请求（GET ...）不创建 decoder
+        if (httpRequest.content() == null || !httpRequest.content().isReadable()) {
+            return;
+        }
+        httpRequest.retain();
+        // set Request Decoder
+        HttpPostRequestDecoder postDecoder = new HttpPostRequestDecoder(new DefaultHttpDataFactory(false), httpRequest, CharsetUtil.UTF_8);
+        // loop data
+        for (InterfaceHttpData data : postDecoder.getBodyHttpDatas()) {
+            String name = data.getName();
+            // 表单
+            if (name!=null && data.getHttpDataType() == InterfaceHttpData.HttpDataType.Attribute) {
+                formParams.computeIfAbsent(name, k -> new ArrayList<>())
+                        .add(((MemoryAttribute) data).getValue());
+            }
+            // 上传文件的内容
+            else if (name!=null && data.getHttpDataType() == InterfaceHttpData.HttpDataType.FileUpload) {
+                fileParams.computeIfAbsent(name, k -> new ArrayList<>())
+                        .add(((MemoryFileUpload) data).retain());
+            }
+        }
+        postDecoder.destroy();
+    }
+}
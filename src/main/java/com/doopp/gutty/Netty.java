@@ -2,6 +2,7 @@ package com.doopp.gutty;
 
 import com.doopp.gutty.netty.Http1RequestHandler;
 import com.doopp.gutty.netty.StaticFileRequestHandler;
+import com.doopp.gutty.netty.WebSocketCompressionHandler;
 import com.doopp.gutty.netty.WebSocketServerHandler;
 import com.google.inject.*;
 import com.google.inject.name.Named;
@@ -31,6 +32,18 @@ class Netty {
     @Named("gutty.httpsPort")
     private Integer httpsPort;
 
+    @Inject
+    @Named("gutty.websocket.compressionLevel")
+    private Integer compressionLevel;
+
+    @Inject
+    @Named("gutty.websocket.compressionWindowSize")
+    private Integer compressionWindowSize;
+
+    @Inject
+    @Named("gutty.websocket.compressionMinSize")
+    private Integer compressionMinSize;
+
     public void run() {
         // boss event
         EventLoopGroup bossEventLoopGroup = new NioEventLoopGroup();
@@ -80,6 +93,10 @@ class Netty {
                 ch.pipeline().addLast(new HttpObjectAggregator(65536));
                 // that adds support for writing a large data stream
                 ch.pipeline().addLast(new ChunkedWriteHandler());
+                // websocket permessage-deflate
+                if (compressionLevel > 0) {
+                    ch.pipeline().addLast(new WebSocketCompressionHandler(compressionLevel, compressionWindowSize, compressionMinSize));
+                }
                 // websocket
                 ch.pipeline().addLast(injector.getInstance(WebSocketServerHandler.class));
                 // http request
@@ -0,0 +1,333 @@
+package com.doopp.gutty;
+
+import javax.ws.rs.ext.ParamConverter;
+import javax.ws.rs.ext.ParamConverterProvider;
+import java.lang.annotation.Annotation;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.*;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.time.*;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeFormatterBuilder;
+import java.time.format.DateTimeParseException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+// 请求参数（query, form, path, header, cookie）的类型转换
+// 每个类型的转换器只查找一次并缓存，启动时 Dispatcher.prepare 为每个路由的参数预先选好
+// 先使用注册的 ParamConverterProvider（Gutty.addParamConverter 或者 Multibinder），再使用内置的转换
+public class ParamConverters {
+
+    private static final ParamConverters paramConverters = new ParamConverters();
+
+    // yyyy-MM-dd HH:mm:ss 或者 yyyy-MM-ddTHH:mm:ss
+    private static final DateTimeFormatter DATE_TIME = new DateTimeFormatterBuilder()
+            .append(DateTimeFormatter.ISO_LOCAL_DATE)
+            .optionalStart().appendLiteral('T').optionalEnd()
+            .optionalStart().appendLiteral(' ').optionalEnd()
+            .append(DateTimeFormatter.ISO_LOCAL_TIME)
+            .toFormatter();
+
+    private static final Map<Class<?>, Function<String, ?>> builtinConverters = new HashMap<>();
+
+    static {
+        builtinConverters.put(String.class, value -> value);
+        builtinConverters.put(Long.class, Long::valueOf);
+        builtinConverters.put(Integer.class, Integer::valueOf);
+        builtinConverters.put(Short.class, Short::valueOf);
+        builtinConverters.put(Byte.class, Byte::valueOf);
+        builtinConverters.put(Double.class, Double::valueOf);
+        builtinConverters.put(Float.class, Float::valueOf);
+        builtinConverters.put(Boolean.class, Boolean::valueOf);
+        builtinConverters.put(Character.class, value -> value.isEmpty() ? null : value.charAt(0));
+        builtinConverters.put(BigDecimal.class, BigDecimal::new);
+        builtinConverters.put(BigInteger.class, BigInteger::new);
+        builtinConverters.put(UUID.class, UUID::fromString);
+        // 时间格式不对时和以前一样返回 null
+        builtinConverters.put(Date.class, value -> dateTime(value, v -> Date.from(LocalDateTime.parse(v, DATE_TIME).atZone(ZoneId.systemDefault()).toInstant())));
+        builtinConverters.put(LocalDateTime.class, value -> dateTime(value, v -> LocalDateTime.parse(v, DATE_TIME)));
+        builtinConverters.put(LocalDate.class, value -> dateTime(value, LocalDate::parse));
+        builtinConverters.put(LocalTime.class, value -> dateTime(value, LocalTime::parse));
+        builtinConverters.put(Instant.class, value -> dateTime(value, Instant::parse));
+        builtinConverters.put(OffsetDateTime.class, value -> dateTime(value, OffsetDateTime::parse));
+        builtinConverters.put(ZonedDateTime.class, value -> dateTime(value, ZonedDateTime::parse));
+        builtinConverters.put(Duration.class, value -> dateTime(value, Duration::parse));
+    }
+
+    private volatile List<ParamConverterProvider> providers = Collections.emptyList();
+
+    // ParamConverterProvider 可以按注解返回不同的转换器，所以按类型和注解缓存
+    private final Map<ConverterKey, ValueConverter> converterMap = new ConcurrentHashMap<>();
+
+    public static ParamConverters getInstance() {
+        return paramConverters;
+    }
+
+    public void setProviders(Collection<ParamConverterProvider> providers) {
+        this.providers = new ArrayList<>(providers);
+        this.converterMap.clear();
+    }
+
+    // 类型的转换器，不支持的类型返回 null
+    public ValueConverter converter(Type type, Annotation[] annotations) {
+        ConverterKey converterKey = new ConverterKey(type, annotations);
+        ValueConverter valueConverter = converterMap.get(converterKey);
+        if (valueConverter == null) {
+            valueConverter = createConverter(type, annotations);
+            if (valueConverter != null) {
+                converterMap.put(converterKey, valueConverter);
+            }
+        }
+        return valueConverter;
+    }
+
+    private ValueConverter createConverter(Type type, Annotation[] annotations) {
+        ValueConverter valueConverter = createValuesConverter(type, annotations);
+        if (valueConverter == null) {
+            return null;
+        }
+        // 没有值的时候，基本类型用默认值，其他的是 null
+        Class<?> clazz = rawClass(type);
+        Object emptyValue = clazz.isPrimitive() ? Array.get(Array.newInstance(clazz, 1), 0) : null;
+        return values -> {
+            if (values == null || values.isEmpty()) {
+                return emptyValue;
+            }
+            Object value = valueConverter.convert(values);
+            return (value == null) ? emptyValue : value;
+        };
+    }
+
+    private ValueConverter createValuesConverter(Type type, Annotation[] annotations) {
+        Class<?> clazz = rawClass(type);
+        // 基本类型的数组直接填充，不装箱
+        if (clazz == long[].class) {
+            return values -> {
+                long[] array = new long[values.size()];
+                for (int ii = 0; ii < array.length; ii++) {
+                    array[ii] = Long.parseLong(values.get(ii));
+                }
+                return array;
+            };
+        }
+        else if (clazz == int[].class) {
+            return values -> {
+                int[] array = new int[values.size()];
+                for (int ii = 0; ii < array.length; ii++) {
+                    array[ii] = Integer.parseInt(values.get(ii));
+                }
+                return array;
+            };
+        }
+        else if (clazz == short[].class) {
+            return values -> {
+                short[] array = new short[values.size()];
+                for (int ii = 0; ii < array.length; ii++) {
+                    array[ii] = Short.parseShort(values.get(ii));
+                }
+                return array;
+            };
+        }
+        else if (clazz == double[].class) {
+            return values -> {
+                double[] array = new double[values.size()];
+                for (int ii = 0; ii < array.length; ii++) {
+                    array[ii] = Double.parseDouble(values.get(ii));
+                }
+                return array;
+            };
+        }
+        else if (clazz == float[].class) {
+            return values -> {
+                float[] array = new float[values.size()];
+                for (int ii = 0; ii < array.length; ii++) {
+                    array[ii] = Float.parseFloat(values.get(ii));
+                }
+                return array;
+            };
+        }
+        else if (clazz == boolean[].class) {
+            return values -> {
+                boolean[] array = new boolean[values.size()];
+                for (int ii = 0; ii < array.length; ii++) {
+                    array[ii] = Boolean.parseBoolean(values.get(ii));
+                }
+                return array;
+            };
+        }
+        // 对象数组
+        else if (clazz.isArray() && !clazz.getComponentType().isPrimitive()) {
+            Class<?> componentClazz = clazz.getComponentType();
+            Function<String, ?> converter = scalarConverter(componentClazz, componentClazz, annotations);
+            if (converter == null) {
+                return null;
+            }
+            return values -> {
+                Object[] array = (Object[]) Array.newInstance(componentClazz, values.size());
+                for (int ii = 0; ii < array.length; ii++) {
+                    array[ii] = convert(converter, values.get(ii));
+                }
+                return array;
+            };
+        }
+        // List<T>, Set<T>, SortedSet<T>
+        else if (clazz == List.class || clazz == Collection.class || clazz == Set.class || clazz == SortedSet.class) {
+            Type elementType = (type instanceof ParameterizedType) ? ((ParameterizedType) type).getActualTypeArguments()[0] : String.class;
+            Function<String, ?> converter = scalarConverter(rawClass(elementType), elementType, annotations);
+            if (converter == null) {
+                return null;
+            }
+            return values -> {
+                Collection<Object> collection = (clazz == SortedSet.class) ? new TreeSet<>()
+                        : (clazz == Set.class) ? new LinkedHashSet<>() : new ArrayList<>(values.size());
+                for (String value : values) {
+                    collection.add(convert(converter, value));
+                }
+                return collection;
+            };
+        }
+        // 单个值，多个值时取第一个
+        Function<String, ?> converter = scalarConverter(clazz, type, annotations);
+        if (converter == null) {
+            return null;
+        }
+        return values -> convert(converter, values.get(0));
+    }
+
+    private Function<String, ?> scalarConverter(Class<?> clazz, Type type, Annotation[] annotations) {
+        // 注册的 ParamConverterProvider
+        for (ParamConverterProvider provider : providers) {
+            ParamConverter<?> paramConverter = provider.getConverter(clazz, type, annotations);
+            if (paramConverter != null) {
+                return paramConverter::fromString;
+            }
+        }
+        // 基本类型按包装类转换
+        Class<?> boxedClazz = MethodType.methodType(clazz).wrap().returnType();
+        Function<String, ?> builtinConverter = builtinConverters.get(boxedClazz);
+        if (builtinConverter != null) {
+            return builtinConverter;
+        }
+        // Object, CharSequence ...
+        if (clazz.isAssignableFrom(String.class)) {
+            return value -> value;
+        }
+        // 枚举，名字到常量的 map 只创建一次
+        if (clazz.isEnum()) {
+            Map<String, Object> constants = new HashMap<>();
+            for (Object constant : clazz.getEnumConstants()) {
+                constants.put(((Enum<?>) constant).name(), constant);
+            }
+            return value -> {
+                Object constant = constants.get(value);
+                if (constant == null) {
+                    throw new IllegalArgumentException("No enum constant " + clazz.getName() + "." + value);
+                }
+                return constant;
+            };
+        }
+        // JAX-RS 的约定：valueOf(String), fromString(String), 构造函数(String)
+        MethodHandle methodHandle = stringFactory(clazz);
+        if (methodHandle != null) {
+            return value -> {
+                try {
+                    return methodHandle.invoke(value);
+                }
+                catch (RuntimeException e) {
+                    throw e;
+                }
+                catch (Throwable e) {
+                    throw new RuntimeException(e);
+                }
+            };
+        }
+        return null;
+    }
+
+    private static MethodHandle stringFactory(Class<?> clazz) {
+        MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+        for (String methodName : new String[]{"valueOf", "fromString"}) {
+            try {
+                return lookup.findStatic(clazz, methodName, MethodType.methodType(clazz, String.class));
+            }
+            catch (NoSuchMethodException | IllegalAccessException ignored) {
+            }
+        }
+        try {
+            return lookup.findConstructor(clazz, MethodType.methodType(void.class, String.class));
+        }
+        catch (NoSuchMethodException | IllegalAccessException e) {
+            return null;
+        }
+    }
+
+    private static Object convert(Function<String, ?> converter, String value) {
+        return (value == null) ? null : converter.apply(value);
+    }
+
+    private static Object dateTime(String value, Function<String, ?> parser) {
+        try {
+            return parser.apply(value.trim());
+        }
+        catch (DateTimeParseException e) {
+            return null;
+        }
+    }
+
+    private static Class<?> rawClass(Type type) {
+        if (type instanceof Class) {
+            return (Class<?>) type;
+        }
+        if (type instanceof ParameterizedType) {
+            return (Class<?>) ((ParameterizedType) type).getRawType();
+        }
+        return Object.class;
+    }
+
+    private static final class ConverterKey {
+
+        private final Type type;
+
+        private final Annotation[] annotations;
+
+        private final int hashCode;
+
+        ConverterKey(Type type, Annotation[] annotations) {
+            this.type = type;
+            this.annotations = annotations;
+            this.hashCode = 31 * type.hashCode() + Arrays.hashCode(annotations);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof ConverterKey)) {
+                return false;
+            }
+            ConverterKey converterKey = (ConverterKey) o;
+            return type.equals(converterKey.type) && Arrays.equals(annotations, converterKey.annotations);
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+    }
+
+    // 把一个参数的所有值转换成参数的类型
+    public interface ValueConverter {
+
+        Object convert(List<String> values);
+
+        // 没有值时和列表一样返回默认值
+        default Object convert(String value) {
+            return convert((value == null) ? Collections.emptyList() : Collections.singletonList(value));
+        }
+    }
+}
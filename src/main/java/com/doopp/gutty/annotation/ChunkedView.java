@@ -0,0 +1,16 @@
+package com.doopp.gutty.annotation;
+
+import java.lang.annotation.*;
+
+// 模版边输出边发送（chunked），适合很大的页面
+@Target({ElementType.METHOD})
+@Retention(RetentionPolicy.RUNTIME)
+@Documented
+public @interface ChunkedView {
+
+    // 每块的字节数
+    int chunkSize() default 8 * 1024;
+
+    // 最多等待发送的块数，超过时模版输出暂停，直到 channel 可写
+    int maxChunks() default 4;
+}
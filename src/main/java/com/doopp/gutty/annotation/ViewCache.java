@@ -0,0 +1,17 @@
+package com.doopp.gutty.annotation;
+
+import java.lang.annotation.*;
+
+// 缓存输出的页面，同一个模版和同样的 model 属性直接返回缓存，不再执行模版
+@Target({ElementType.METHOD})
+@Retention(RetentionPolicy.RUNTIME)
+@Documented
+public @interface ViewCache {
+
+    // 参与缓存 key 的 model 属性，为空时使用所有属性
+    // 属性的值按 JSON（没有 MessageConverter 时按 toString）比较
+    String[] value() default {};
+
+    // 缓存的时间（秒）
+    int ttl() default 60;
+}
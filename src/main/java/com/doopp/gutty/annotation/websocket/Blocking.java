@@ -0,0 +1,12 @@
+package com.doopp.gutty.annotation.websocket;
+
+import java.lang.annotation.*;
+
+// 方法会阻塞（数据库、redis ...），不在 event loop 上执行
+// 交给 worker 线程池，同一个连接的消息仍然按顺序处理
+// 标注在 @Socket 类上时所有方法都这样处理
+@Target({ElementType.TYPE, ElementType.METHOD})
+@Retention(RetentionPolicy.RUNTIME)
+@Documented
+public @interface Blocking {
+}
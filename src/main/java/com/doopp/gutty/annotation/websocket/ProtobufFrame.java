@@ -6,5 +6,9 @@ import java.lang.annotation.*;
 @Retention(RetentionPolicy.RUNTIME)
 @Documented
 public @interface ProtobufFrame {
+
+    // 消息的类型 id，二进制帧以 varint 的类型 id 开头，只有类型一致的帧才调用这个方法
+    // 小于 0 时帧里只有 message，所有二进制帧都会调用
+    int value() default -1;
 }
 
@@ -6,5 +6,22 @@ import java.lang.annotation.*;
 @Retention(RetentionPolicy.RUNTIME)
 @Documented
 public @interface Socket {
-}
 
+    // permessage-deflate, false 关闭这个路由的压缩
+    boolean compression() default true;
+
+    // 一条消息（聚合后）的最大字节数，也是单个帧的上限
+    int maxMessageSize() default 5 * 1024 * 1024;
+
+    // 把分片的消息聚合成一个完整的帧再交给处理方法
+    boolean aggregate() default true;
+
+    // 二进制消息不聚合，@BinaryMessage 逐个收到分片，参数可以是 ByteBuf 或 WebSocketFrame
+    boolean streaming() default false;
+
+    // 合并 flush 的最长等待毫秒数，0 每次 flush 都立即写出
+    int flushDelay() default 0;
+
+    // 等待 flush 的数据超过这个字节数时立即写出
+    int flushBytes() default 16 * 1024;
+}
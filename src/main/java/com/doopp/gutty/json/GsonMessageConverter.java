@@ -5,6 +5,10 @@ import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
 import com.google.gson.LongSerializationPolicy;
 
+import java.io.*;
+import java.lang.reflect.Type;
+import java.nio.charset.StandardCharsets;
+
 public class GsonMessageConverter implements MessageConverter {
 
     private Gson gson;
@@ -41,5 +45,16 @@ public class GsonMessageConverter implements MessageConverter {
     public <T> T fromJson(String json, Class<T> clazz) {
         return this.gson.fromJson(json, clazz);
     }
-}
 
+    @Override
+    public <T> T read(InputStream input, Type type) {
+        return this.gson.fromJson(new InputStreamReader(input, StandardCharsets.UTF_8), type);
+    }
+
+    @Override
+    public void write(Object object, OutputStream output) throws IOException {
+        Writer writer = new OutputStreamWriter(output, StandardCharsets.UTF_8);
+        this.gson.toJson(object, writer);
+        writer.flush();
+    }
+}
@@ -5,14 +5,25 @@ import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.*;
 import com.fasterxml.jackson.databind.module.SimpleModule;
 import com.fasterxml.jackson.databind.ser.std.ToStringSerializer;
+import com.google.inject.Inject;
+import com.google.inject.name.Named;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Type;
 import java.text.SimpleDateFormat;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class JacksonMessageConverter implements MessageConverter {
 
     private ObjectMapper objectMapper;
 
+    private final Map<Type, ObjectReader> readerMap = new ConcurrentHashMap<>();
+
+    private final Map<Class<?>, ObjectWriter> writerMap = new ConcurrentHashMap<>();
+
     public JacksonMessageConverter() {
         SimpleModule simpleModule = new SimpleModule();
         simpleModule.addSerializer(Long.class, ToStringSerializer.instance);
@@ -43,16 +54,47 @@ public class JacksonMessageConverter implements MessageConverter {
     public void setObjectMapper(ObjectMapper objectMapper) {
         assert objectMapper!=null : "A ObjectMapper instance is required";
         this.objectMapper = objectMapper;
+        clearCache();
     }
 
     public ObjectMapper getObjectMapper() {
         return this.objectMapper;
     }
 
+    // 用生成的字节码代替反射读写属性，需要 jackson-module-afterburner
+    // 通过反射加载，没有这个依赖时其他功能不受影响
+    public JacksonMessageConverter enableAfterburner() {
+        try {
+            Class<?> moduleClass = Class.forName("com.fasterxml.jackson.module.afterburner.AfterburnerModule");
+            this.objectMapper.registerModule((Module) moduleClass.newInstance());
+        }
+        catch (ReflectiveOperationException e) {
+            throw new RuntimeException("jackson-module-afterburner is required to enable afterburner", e);
+        }
+        clearCache();
+        return this;
+    }
+
+    @Inject(optional = true)
+    public void setAfterburner(@Named("gutty.jackson.afterburner") boolean afterburner) {
+        if (afterburner) {
+            enableAfterburner();
+        }
+    }
+
+    // 路由启动时预先创建参数和返回值类型的 ObjectReader / ObjectWriter
+    @Override
+    public void prepare(Type type) {
+        reader(type);
+        if (type instanceof Class && !((Class<?>) type).isInterface() && type != Object.class) {
+            writer((Class<?>) type);
+        }
+    }
+
     @Override
     public String toJson(Object object) {
         try {
-            return this.objectMapper.writeValueAsString(object);
+            return writer(object).writeValueAsString(object);
         }
         catch(JsonProcessingException e) {
             throw new RuntimeException(e);
@@ -62,11 +104,39 @@ public class JacksonMessageConverter implements MessageConverter {
     @Override
     public <T> T fromJson(String json, Class<T> clazz) {
         try {
-            return this.objectMapper.readValue(json, clazz);
+            return reader(clazz).readValue(json);
         }
         catch(IOException e) {
             throw new RuntimeException(e);
         }
     }
-}
 
+    @Override
+    public <T> T read(InputStream input, Type type) throws IOException {
+        return reader(type).readValue(input);
+    }
+
+    @Override
+    public void write(Object object, OutputStream output) throws IOException {
+        writer(object).writeValue(output, object);
+    }
+
+    // 每个类型只解析一次 deserializer
+    private ObjectReader reader(Type type) {
+        return readerMap.computeIfAbsent(type, k -> objectMapper.readerFor(objectMapper.constructType(k)));
+    }
+
+    // 按运行时的类型缓存，子类和集合的元素仍然按实际类型序列化
+    private ObjectWriter writer(Object object) {
+        return (object == null) ? objectMapper.writer() : writer(object.getClass());
+    }
+
+    private ObjectWriter writer(Class<?> clazz) {
+        return writerMap.computeIfAbsent(clazz, objectMapper::writerFor);
+    }
+
+    private void clearCache() {
+        readerMap.clear();
+        writerMap.clear();
+    }
+}
@@ -0,0 +1,117 @@
+package com.doopp.gutty.json;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.stream.ChunkedInput;
+
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.stream.BaseStream;
+
+// 逐条序列化的 JSON 数组或 NDJSON
+// ChunkedWriteHandler 在 channel 可写时才读取下一块，内存占用和结果的总数无关
+public class JsonChunkedInput implements ChunkedInput<ByteBuf> {
+
+    private static final int CHUNK_SIZE = 8192;
+
+    private final Iterator<?> iterator;
+
+    private final AutoCloseable closeable;
+
+    private final MessageConverter messageConverter;
+
+    private final boolean ndjson;
+
+    private boolean started;
+
+    private boolean ended;
+
+    private long progress;
+
+    public JsonChunkedInput(Iterator<?> iterator, AutoCloseable closeable, MessageConverter messageConverter, boolean ndjson) {
+        this.iterator = iterator;
+        this.closeable = closeable;
+        this.messageConverter = messageConverter;
+        this.ndjson = ndjson;
+    }
+
+    // Stream, Iterator 和不是 Collection 的 Iterable（例如 mybatis 的 Cursor）逐条输出
+    public static boolean isStreamable(Object result) {
+        return result instanceof BaseStream
+                || result instanceof Iterator
+                || (result instanceof Iterable && !(result instanceof Collection));
+    }
+
+    public static JsonChunkedInput of(Object result, MessageConverter messageConverter, boolean ndjson) {
+        Iterator<?> iterator = (result instanceof BaseStream)
+                ? ((BaseStream<?, ?>) result).iterator()
+                : (result instanceof Iterator) ? (Iterator<?>) result : ((Iterable<?>) result).iterator();
+        AutoCloseable closeable = (result instanceof AutoCloseable) ? (AutoCloseable) result : null;
+        return new JsonChunkedInput(iterator, closeable, messageConverter, ndjson);
+    }
+
+    @Override
+    public boolean isEndOfInput() {
+        return ended;
+    }
+
+    @Override
+    public void close() throws Exception {
+        if (closeable != null) {
+            closeable.close();
+        }
+    }
+
+    @Deprecated
+    @Override
+    public ByteBuf readChunk(ChannelHandlerContext ctx) throws Exception {
+        return readChunk(ctx.alloc());
+    }
+
+    @Override
+    public ByteBuf readChunk(ByteBufAllocator allocator) {
+        if (ended) {
+            return null;
+        }
+        ByteBuf chunk = allocator.buffer(CHUNK_SIZE);
+        try {
+            if (!started && !ndjson) {
+                chunk.writeByte('[');
+            }
+            while (chunk.readableBytes() < CHUNK_SIZE && iterator.hasNext()) {
+                if (started && !ndjson) {
+                    chunk.writeByte(',');
+                }
+                started = true;
+                messageConverter.write(iterator.next(), chunk);
+                if (ndjson) {
+                    chunk.writeByte('\n');
+                }
+            }
+            started = true;
+            if (!iterator.hasNext()) {
+                ended = true;
+                if (!ndjson) {
+                    chunk.writeByte(']');
+                }
+            }
+            progress += chunk.readableBytes();
+            return chunk;
+        }
+        catch (RuntimeException e) {
+            chunk.release();
+            throw e;
+        }
+    }
+
+    @Override
+    public long length() {
+        return -1;
+    }
+
+    @Override
+    public long progress() {
+        return progress;
+    }
+}
@@ -1,9 +1,65 @@
 package com.doopp.gutty.json;
 
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufInputStream;
+import io.netty.buffer.ByteBufOutputStream;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.nio.charset.StandardCharsets;
+
 public interface MessageConverter {
 
     String toJson(Object object);
 
     <T> T fromJson(String json, Class<T> clazz);
-}
 
+    // 路由启动时对参数和返回值的类型调用，可以预先创建和缓存序列化的对象
+    default void prepare(Type type) {
+    }
+
+    // 从 UTF-8 的字节流读取，type 可以是泛型类型
+    // 默认先转成 String，Jackson 和 Gson 的实现直接读取字节流
+    // 默认的实现不支持泛型，和以前一样按原始类型（List<User> 按 List）读取
+    @SuppressWarnings("unchecked")
+    default <T> T read(InputStream input, Type type) throws IOException {
+        Class<?> clazz = (type instanceof Class) ? (Class<?>) type
+                : (type instanceof ParameterizedType) ? (Class<?>) ((ParameterizedType) type).getRawType()
+                : Object.class;
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        for (int length = input.read(buffer); length >= 0; length = input.read(buffer)) {
+            bytes.write(buffer, 0, length);
+        }
+        return fromJson(new String(bytes.toByteArray(), StandardCharsets.UTF_8), (Class<T>) clazz);
+    }
+
+    // 以 UTF-8 写入字节流
+    default void write(Object object, OutputStream output) throws IOException {
+        output.write(toJson(object).getBytes(StandardCharsets.UTF_8));
+    }
+
+    // 读取 content 的可读部分，不移动 content 的 readerIndex
+    default <T> T read(ByteBuf content, Type type) {
+        try (InputStream input = new ByteBufInputStream(content.duplicate())) {
+            return read(input, type);
+        }
+        catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    // 追加写入 content
+    default void write(Object object, ByteBuf content) {
+        try (OutputStream output = new ByteBufOutputStream(content)) {
+            write(object, output);
+        }
+        catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
@@ -3,7 +3,6 @@ package com.doopp.gutty.netty;
 import com.doopp.gutty.Dispatcher;
 import com.doopp.gutty.NotFoundException;
 import com.google.inject.*;
-import io.netty.buffer.Unpooled;
 import io.netty.channel.*;
 import io.netty.handler.codec.http.*;
 
@@ -26,10 +25,10 @@ public class Http1RequestHandler extends AbstractFilterHandler<FullHttpRequest>
 
     @Override
     public void handleRequest(ChannelHandlerContext ctx, FullHttpRequest httpRequest, FullHttpResponse httpResponse) {
-        byte[] result;
-        // 执行路由
+        HttpChunkedInput chunkedInput;
+        // 执行路由，结果写入 httpResponse 的 content
         try {
-            result = Dispatcher.getInstance().executeHttpRoute(injector, ctx, httpRequest, httpResponse);
+            chunkedInput = Dispatcher.getInstance().executeHttpRoute(injector, ctx, httpRequest, httpResponse);
         }
         catch (NotFoundException e) {
             ctx.fireChannelRead(httpRequest.retain());
@@ -44,8 +43,11 @@ public class Http1RequestHandler extends AbstractFilterHandler<FullHttpRequest>
         catch (Exception e) {
             throw new RuntimeException(e);
         }
-        // 写入内容
-        httpResponse.content().writeBytes(Unpooled.copiedBuffer(result));
+        // 分块输出
+        if (chunkedInput != null) {
+            writeChunked(ctx, httpRequest, httpResponse, chunkedInput);
+            return;
+        }
         // set length
         httpResponse.headers().set(CONTENT_LENGTH, httpResponse.content().readableBytes());
         // keep alive
@@ -60,4 +62,24 @@ public class Http1RequestHandler extends AbstractFilterHandler<FullHttpRequest>
             future.addListener(ChannelFutureListener.CLOSE);
         }
     }
+
+    private void writeChunked(ChannelHandlerContext ctx, FullHttpRequest httpRequest, FullHttpResponse httpResponse, HttpChunkedInput chunkedInput) {
+        HttpResponse response = new DefaultHttpResponse(httpResponse.protocolVersion(), HttpResponseStatus.OK, httpResponse.headers());
+        httpResponse.release();
+        HttpUtil.setTransferEncodingChunked(response, true);
+        // keep alive
+        if (HttpUtil.isKeepAlive(httpRequest)) {
+            response.headers().set(HttpHeaderNames.CONNECTION, HttpHeaderValues.KEEP_ALIVE);
+        }
+        ctx.write(response);
+        // ChunkedWriteHandler 在 channel 可写时才读取下一块
+        ChannelFuture future = ctx.writeAndFlush(chunkedInput);
+        if (!HttpUtil.isKeepAlive(httpRequest)) {
+            future.addListener(ChannelFutureListener.CLOSE);
+        }
+        else {
+            // 输出到一半失败了，响应已经不完整
+            future.addListener(ChannelFutureListener.CLOSE_ON_FAILURE);
+        }
+    }
 }
@@ -0,0 +1,56 @@
+package com.doopp.gutty.netty;
+
+import com.doopp.gutty.Dispatcher;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaderValues;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.websocketx.ContinuationWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.extensions.WebSocketExtensionFilter;
+import io.netty.handler.codec.http.websocketx.extensions.WebSocketExtensionFilterProvider;
+import io.netty.handler.codec.http.websocketx.extensions.WebSocketServerExtensionHandler;
+import io.netty.handler.codec.http.websocketx.extensions.compression.DeflateFrameServerExtensionHandshaker;
+import io.netty.handler.codec.http.websocketx.extensions.compression.PerMessageDeflateServerExtensionHandshaker;
+
+// 与 WebSocketServerCompressionHandler 相同的扩展协商，但压缩参数可配置，并且 @Socket(compression = false) 的路由不协商压缩
+public class WebSocketCompressionHandler extends WebSocketServerExtensionHandler {
+
+    public WebSocketCompressionHandler(int compressionLevel, int windowSize, int minSize) {
+        super(new PerMessageDeflateServerExtensionHandshaker(compressionLevel, true, windowSize, false, false, filterProvider(minSize)),
+                new DeflateFrameServerExtensionHandshaker(compressionLevel, filterProvider(minSize)));
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+        if (msg instanceof HttpRequest) {
+            HttpRequest httpRequest = (HttpRequest) msg;
+            if (httpRequest.headers().containsValue(HttpHeaderNames.CONNECTION, HttpHeaderValues.UPGRADE, true)) {
+                Dispatcher.SocketRoute socketRoute = Dispatcher.getInstance().getSocketRoute(httpRequest.uri());
+                // 不协商扩展，握手的响应里就不会有 Sec-WebSocket-Extensions
+                if (socketRoute == null || !socketRoute.isCompression()) {
+                    ctx.fireChannelRead(msg);
+                    return;
+                }
+            }
+        }
+        super.channelRead(ctx, msg);
+    }
+
+    private static WebSocketExtensionFilterProvider filterProvider(int minSize) {
+        // 小于 minSize 的完整消息不压缩，分片消息的后续帧必须和首帧保持一致
+        WebSocketExtensionFilter encoderFilter = frame -> minSize > 0
+                && frame.isFinalFragment()
+                && !(frame instanceof ContinuationWebSocketFrame)
+                && frame.content().readableBytes() < minSize;
+        return new WebSocketExtensionFilterProvider() {
+            @Override
+            public WebSocketExtensionFilter encoderFilter() {
+                return encoderFilter;
+            }
+            @Override
+            public WebSocketExtensionFilter decoderFilter() {
+                return WebSocketExtensionFilter.NEVER_SKIP;
+            }
+        };
+    }
+}
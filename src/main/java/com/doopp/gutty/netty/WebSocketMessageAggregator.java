@@ -0,0 +1,22 @@
+package com.doopp.gutty.netty;
+
+import io.netty.handler.codec.http.websocketx.BinaryWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.WebSocketFrame;
+import io.netty.handler.codec.http.websocketx.WebSocketFrameAggregator;
+
+// 文本消息总是聚合，二进制消息可以不聚合，分片原样交给后面的 handler
+public class WebSocketMessageAggregator extends WebSocketFrameAggregator {
+
+    private final boolean aggregateBinary;
+
+    public WebSocketMessageAggregator(int maxMessageSize, boolean aggregateBinary) {
+        super(maxMessageSize);
+        this.aggregateBinary = aggregateBinary;
+    }
+
+    @Override
+    protected boolean isStartMessage(WebSocketFrame msg) throws Exception {
+        return msg instanceof TextWebSocketFrame || (aggregateBinary && msg instanceof BinaryWebSocketFrame);
+    }
+}
@@ -2,26 +2,57 @@ package com.doopp.gutty.netty;
 
 import com.doopp.gutty.Dispatcher;
 import com.doopp.gutty.HttpParam;
+import com.doopp.gutty.protobuf.ProtobufHelper;
+import com.doopp.gutty.websocket.FlushCoalescingHandler;
+import com.doopp.gutty.websocket.OutboundQueueHandler;
+import com.doopp.gutty.websocket.SlowConsumerPolicy;
+import com.doopp.gutty.websocket.SocketHeartbeat;
+import com.doopp.gutty.websocket.SocketMetrics;
+import com.doopp.gutty.websocket.SocketWorkerPool;
 import com.google.inject.Inject;
 import com.google.inject.Injector;
+import com.google.inject.name.Named;
 import io.netty.channel.*;
+import io.netty.handler.codec.TooLongFrameException;
 import io.netty.handler.codec.http.*;
 import io.netty.handler.codec.http.websocketx.*;
 import io.netty.util.Attribute;
 import io.netty.util.AttributeKey;
+import io.netty.util.ReferenceCountUtil;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
 public class  WebSocketServerHandler extends AbstractFilterHandler<Object> {
 
     private final static Logger logger = LoggerFactory.getLogger(WebSocketServerHandler.class);
 
+    private final static AttributeKey<Class<?>> FRAGMENT_TYPE = AttributeKey.valueOf("gutty.fragmentType");
+
     @Inject
     private Injector injector;
 
+    @Inject
+    private SocketMetrics socketMetrics;
+
+    @Inject
+    private SocketHeartbeat socketHeartbeat;
+
+    @Inject
+    private SocketWorkerPool socketWorkerPool;
+
+    @Inject
+    @Named("gutty.websocket.outboundQueueSize")
+    private Integer outboundQueueSize;
+
+    @Inject
+    @Named("gutty.websocket.slowConsumerPolicy")
+    private String slowConsumerPolicy;
+
     @Override
     public void channelRead0(ChannelHandlerContext ctx, Object msg) throws Exception {
         if (msg instanceof FullHttpRequest) {
@@ -32,10 +63,21 @@ public class  WebSocketServerHandler extends AbstractFilterHandler<Object> {
             handleFilter(ctx, httpRequest, httpResponse, this);
         }
         else if (msg instanceof WebSocketFrame) {
+            socketHeartbeat.touch(ctx.channel());
             callSocketMethod(ctx, msg);
         }
     }
 
+    @Override
+    public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
+        // 聚合后的消息超过了 maxMessageSize
+        if (cause instanceof TooLongFrameException) {
+            ctx.writeAndFlush(new CloseWebSocketFrame(WebSocketCloseStatus.MESSAGE_TOO_BIG)).addListener(ChannelFutureListener.CLOSE);
+            return;
+        }
+        super.exceptionCaught(ctx, cause);
+    }
+
     @Override
     public void handleRequest(ChannelHandlerContext ctx, FullHttpRequest httpRequest, FullHttpResponse httpResponse) {
         // is websocket
@@ -51,12 +93,28 @@ public class  WebSocketServerHandler extends AbstractFilterHandler<Object> {
             }
             // Handshake
             WebSocketServerHandshakerFactory wsFactory = new WebSocketServerHandshakerFactory(
-                    getWebSocketLocation(httpRequest), null, true, 5 * 1024 * 1024);
+                    getWebSocketLocation(httpRequest), null, true, socketRoute.getMaxMessageSize());
             WebSocketServerHandshaker handshaker = wsFactory.newHandshaker(httpRequest);
             if (handshaker == null) {
                 WebSocketServerHandshakerFactory.sendUnsupportedVersionResponse(ctx.channel());
             } else {
                 handshaker.handshake(ctx.channel(), httpRequest);
+                // 聚合分片，streaming 的路由二进制消息不聚合，分片逐个交给 @BinaryMessage
+                if (socketRoute.isAggregate()) {
+                    ctx.pipeline().addBefore(ctx.name(), "wsAggregator",
+                            new WebSocketMessageAggregator(socketRoute.getMaxMessageSize(), !socketRoute.isStreaming()));
+                }
+                // 有界的发送队列，放在当前 handler 前面，ctx.write 和 channel.write 都会经过
+                if (outboundQueueSize > 0) {
+                    ctx.pipeline().addBefore(ctx.name(), "outboundQueue",
+                            new OutboundQueueHandler(outboundQueueSize, SlowConsumerPolicy.valueOf(slowConsumerPolicy.toUpperCase()), socketMetrics));
+                }
+                // 合并 flush，放在发送队列后面，队列只在真正 flush 时才写出
+                if (socketRoute.getFlushDelay() > 0) {
+                    ctx.pipeline().addBefore(ctx.name(), "flushCoalescer",
+                            new FlushCoalescingHandler(socketRoute.getFlushDelay(), socketRoute.getFlushBytes(), socketMetrics));
+                }
+                socketHeartbeat.register(ctx.channel());
                 setSocketRoute(ctx, httpRequest);
                 callSocketMethod(ctx, httpRequest);
             }
@@ -77,59 +135,32 @@ public class  WebSocketServerHandler extends AbstractFilterHandler<Object> {
         if (socketRoute==null) {
             return;
         }
-        // get injector instance
-        Object socket = injector.getInstance(socketRoute.getClazz());
         // 初始化要调用的方法
-        List<Method> callMethodList = socketRoute.getMessageMethodList();
-        // on connect
-        if (msg instanceof FullHttpRequest){
-            callMethodList = socketRoute.getOpenMethodList();
-        }
-        // Text Frame
-        else if (msg instanceof TextWebSocketFrame) {
-            if (callMethodList==null) {
-                callMethodList = socketRoute.getTextMethodList();
-            }
-            else if (socketRoute.getTextMethodList()!=null) {
-                callMethodList.addAll(socketRoute.getTextMethodList());
-            }
-        }
-        // Binary Frame
-        else if (msg instanceof BinaryWebSocketFrame) {
-            if (callMethodList==null) {
-                callMethodList = socketRoute.getBinaryMethodList();
-            }
-            else if (socketRoute.getTextMethodList()!=null) {
-                callMethodList.addAll(socketRoute.getBinaryMethodList());
-            }
-        }
-        // Ping Frame
-        else if (msg instanceof PingWebSocketFrame) {
-            if (callMethodList==null) {
-                callMethodList = socketRoute.getPingMethodList();
-            }
-            else if (socketRoute.getTextMethodList()!=null) {
-                callMethodList.addAll(socketRoute.getPingMethodList());
-            }
-        }
-        // Pong Frame
-        else if (msg instanceof PongWebSocketFrame) {
-            if (callMethodList==null) {
-                callMethodList = socketRoute.getPongMethodList();
-            }
-            else if (socketRoute.getTextMethodList()!=null) {
-                callMethodList.addAll(socketRoute.getPongMethodList());
-            }
+        List<Method> callMethodList = (msg instanceof FullHttpRequest)
+                ? socketRoute.getOpenMethodList()
+                : frameMethodList(ctx, socketRoute, (WebSocketFrame) msg);
+        if (callMethodList==null) {
+            return;
         }
-        // Close Frame
-        else if (msg instanceof CloseWebSocketFrame) {
-            if (callMethodList==null) {
-                callMethodList = socketRoute.getCloseMethodList();
-            }
-            else if (socketRoute.getTextMethodList()!=null) {
-                callMethodList.addAll(socketRoute.getCloseMethodList());
-            }
+        // 有 @Blocking 的方法，或者这个连接前面的消息还没处理完，交给 worker 按顺序执行
+        if (socketRoute.isBlocking(callMethodList) || !socketWorkerPool.isIdle(ctx.channel())) {
+            ReferenceCountUtil.retain(msg);
+            socketWorkerPool.execute(ctx.channel(), () -> {
+                try {
+                    invokeSocketMethods(ctx, socketRoute, httpRequest, callMethodList, msg);
+                }
+                finally {
+                    ReferenceCountUtil.release(msg);
+                }
+            });
+            return;
         }
+        invokeSocketMethods(ctx, socketRoute, httpRequest, callMethodList, msg);
+    }
+
+    private void invokeSocketMethods(ChannelHandlerContext ctx, Dispatcher.SocketRoute socketRoute, FullHttpRequest httpRequest, List<Method> callMethodList, Object msg) {
+        // get injector instance
+        Object socket = injector.getInstance(socketRoute.getClazz());
         for(Method method : callMethodList) {
             try {
                 if ((method.getParameters().length == 0)) {
@@ -147,6 +178,55 @@ public class  WebSocketServerHandler extends AbstractFilterHandler<Object> {
         }
     }
 
+    // @Message 的方法加上对应帧类型的方法，不修改路由里的列表
+    private List<Method> frameMethodList(ChannelHandlerContext ctx, Dispatcher.SocketRoute socketRoute, WebSocketFrame frame) {
+        List<Method> frameMethodList = null;
+        // Text Frame
+        if (frame instanceof TextWebSocketFrame) {
+            frameMethodList = socketRoute.getTextMethodList();
+        }
+        // Binary Frame，带类型 id 的 protobuf 帧直接找到对应的方法
+        else if (frame instanceof BinaryWebSocketFrame) {
+            Method protobufMethod = (socketRoute.hasProtobufMethod() && frame.isFinalFragment())
+                    ? socketRoute.getProtobufMethod(ProtobufHelper.typeId(frame.content()))
+                    : null;
+            frameMethodList = (protobufMethod==null) ? socketRoute.getBinaryMethodList() : Collections.singletonList(protobufMethod);
+        }
+        // Continuation Frame，没有被聚合的分片交给首帧类型的方法
+        else if (frame instanceof ContinuationWebSocketFrame) {
+            Class<?> fragmentType = ctx.channel().attr(FRAGMENT_TYPE).get();
+            frameMethodList = (fragmentType == TextWebSocketFrame.class)
+                    ? socketRoute.getTextMethodList()
+                    : (fragmentType == BinaryWebSocketFrame.class) ? socketRoute.getBinaryMethodList() : null;
+        }
+        // Ping Frame
+        else if (frame instanceof PingWebSocketFrame) {
+            frameMethodList = socketRoute.getPingMethodList();
+        }
+        // Pong Frame
+        else if (frame instanceof PongWebSocketFrame) {
+            frameMethodList = socketRoute.getPongMethodList();
+        }
+        // Close Frame
+        else if (frame instanceof CloseWebSocketFrame) {
+            frameMethodList = socketRoute.getCloseMethodList();
+        }
+        // 记录分片消息的类型
+        if (frame instanceof TextWebSocketFrame || frame instanceof BinaryWebSocketFrame) {
+            ctx.channel().attr(FRAGMENT_TYPE).set(frame.isFinalFragment() ? null : frame.getClass());
+        }
+        else if (frame instanceof ContinuationWebSocketFrame && frame.isFinalFragment()) {
+            ctx.channel().attr(FRAGMENT_TYPE).set(null);
+        }
+        List<Method> messageMethodList = socketRoute.getMessageMethodList();
+        if (messageMethodList==null || frameMethodList==null) {
+            return (messageMethodList==null) ? frameMethodList : messageMethodList;
+        }
+        List<Method> callMethodList = new ArrayList<>(messageMethodList);
+        callMethodList.addAll(frameMethodList);
+        return callMethodList;
+    }
+
     private void setSocketRoute(ChannelHandlerContext ctx, FullHttpRequest httpRequest) {
         if (ctx!=null && httpRequest!=null && httpRequest.uri()!=null) {
             AttributeKey<FullHttpRequest> requestAttributeKey = AttributeKey.valueOf("FullHttpRequest");
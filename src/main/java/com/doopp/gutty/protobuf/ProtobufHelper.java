@@ -0,0 +1,130 @@
+package com.doopp.gutty.protobuf;
+
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.MessageLite;
+import com.google.protobuf.Parser;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.handler.codec.http.websocketx.BinaryWebSocketFrame;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// protobuf 的解析和编码
+// 每个类型的 Parser 只反射获取一次，直接从 ByteBuf 读取，不复制成 byte[]
+public class ProtobufHelper {
+
+    private static final Map<Class<?>, Parser<?>> parserMap = new ConcurrentHashMap<>();
+
+    // message 的最大字节数，0 时使用 protobuf 的默认限制
+    private static volatile int sizeLimit = 0;
+
+    public static void setSizeLimit(int sizeLimit) {
+        ProtobufHelper.sizeLimit = sizeLimit;
+    }
+
+    // 类型的 Parser，不是 protobuf 生成的类时抛出异常
+    @SuppressWarnings("unchecked")
+    public static <T> Parser<T> parser(Class<T> clazz) {
+        return (Parser<T>) parserMap.computeIfAbsent(clazz, k -> {
+            try {
+                MessageLite defaultInstance = (MessageLite) k.getMethod("getDefaultInstance").invoke(null);
+                return defaultInstance.getParserForType();
+            }
+            catch (Exception e) {
+                throw new RuntimeException(k.getName() + " is not a protobuf message", e);
+            }
+        });
+    }
+
+    public static <T> T parse(ByteBuf content, Class<T> clazz) {
+        return parse(content, parser(clazz));
+    }
+
+    // 直接从 ByteBuf 的内存读取：heap 用数组，direct 和 composite 用 NIO buffer，不复制
+    public static <T> T parse(ByteBuf content, Parser<T> parser) {
+        int readableBytes = content.readableBytes();
+        if (sizeLimit > 0 && readableBytes > sizeLimit) {
+            throw new RuntimeException("Protobuf message size " + readableBytes + " exceeds the limit " + sizeLimit);
+        }
+        try {
+            CodedInputStream input = (content.hasArray())
+                    ? CodedInputStream.newInstance(content.array(), content.arrayOffset() + content.readerIndex(), readableBytes)
+                    : (content.nioBufferCount() == 1)
+                    ? CodedInputStream.newInstance(content.nioBuffer())
+                    : CodedInputStream.newInstance(Arrays.asList(content.nioBuffers()));
+            if (sizeLimit > 0) {
+                input.setSizeLimit(sizeLimit);
+            }
+            T message = parser.parseFrom(input);
+            input.checkLastTagWas(0);
+            return message;
+        }
+        catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    // 编码到 content 的末尾，直接写入 content 的内存，不经过 byte[]
+    public static void write(MessageLite message, ByteBuf content) {
+        int messageSize = message.getSerializedSize();
+        int writerIndex = content.writerIndex();
+        content.ensureWritable(messageSize);
+        // CompositeByteBuf 的 nioBuffer 可能是复制的，只能先编码再写入
+        if (content.nioBufferCount() != 1) {
+            content.writeBytes(message.toByteArray());
+            return;
+        }
+        try {
+            CodedOutputStream output = CodedOutputStream.newInstance(content.nioBuffer(writerIndex, messageSize));
+            message.writeTo(output);
+            output.checkNoSpaceLeft();
+        }
+        catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        content.writerIndex(writerIndex + messageSize);
+    }
+
+    // 带类型 id 的二进制帧：类型 id (varint) + message
+    // 读取类型 id，不移动 readerIndex，不是合法的 varint 时返回 -1
+    public static int typeId(ByteBuf content) {
+        int typeId = 0;
+        int readerIndex = content.readerIndex();
+        for (int ii = 0; ii < 5 && ii < content.readableBytes(); ii++) {
+            byte b = content.getByte(readerIndex + ii);
+            typeId |= (b & 0x7F) << (7 * ii);
+            if (b >= 0) {
+                return (typeId < 0) ? -1 : typeId;
+            }
+        }
+        return -1;
+    }
+
+    // 去掉类型 id 后的 message，共享原来的内存
+    public static ByteBuf payload(ByteBuf content) {
+        int typeIdLength = CodedOutputStream.computeUInt32SizeNoTag(typeId(content));
+        return content.slice(content.readerIndex() + typeIdLength, content.readableBytes() - typeIdLength);
+    }
+
+    // 编码成带类型 id 的二进制帧
+    public static BinaryWebSocketFrame binaryFrame(ByteBufAllocator allocator, int typeId, MessageLite message) {
+        int frameSize = CodedOutputStream.computeUInt32SizeNoTag(typeId) + message.getSerializedSize();
+        ByteBuf content = allocator.buffer(frameSize);
+        try {
+            CodedOutputStream output = CodedOutputStream.newInstance(content.nioBuffer(0, frameSize));
+            output.writeUInt32NoTag(typeId);
+            message.writeTo(output);
+            output.checkNoSpaceLeft();
+        }
+        catch (IOException e) {
+            content.release();
+            throw new RuntimeException(e);
+        }
+        content.writerIndex(frameSize);
+        return new BinaryWebSocketFrame(content);
+    }
+}
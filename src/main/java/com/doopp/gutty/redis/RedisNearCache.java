@@ -0,0 +1,234 @@
+package com.doopp.gutty.redis;
+
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+// ShardedJedisHelper 前面的本地缓存
+// 数量和时间有上限，同一个 key 同时只有一个请求读取 redis，
+// 通过 helper 写入时发布失效消息，每个节点订阅所有 shard 的消息并移除本地的 key
+// 订阅连接断开时清空一次，重新订阅前不使用缓存，避免错过失效消息后一直返回旧的值
+public class RedisNearCache implements AutoCloseable {
+
+    // 读取不加锁
+    private final Map<String, Entry> entryMap = new ConcurrentHashMap<>();
+
+    // 放入的顺序，超过 maxSize 时从头移除
+    private final Queue<Entry> entryQueue = new ConcurrentLinkedQueue<>();
+
+    // entryQueue 里已经不在 entryMap 的数量，太多时清理
+    private final AtomicInteger staleCount = new AtomicInteger();
+
+    // key => 正在读取 redis 的请求，读取期间这个 key 失效时不缓存读到的值
+    private final Map<String, Loading> loadingMap = new ConcurrentHashMap<>();
+
+    // 放入和失效的检查用这把锁
+    private final Object putLock = new Object();
+
+    // 每次 clear 加一，读取期间 clear 过时不缓存读到的值
+    private volatile long generation;
+
+    private final List<RedisSubscriber> redisSubscribers = new ArrayList<>();
+
+    private final int maxSize;
+
+    private final long ttlMillis;
+
+    private final byte[] channel;
+
+    public RedisNearCache(String[] redisServers, int maxSize, int ttlSeconds, String channel) {
+        this.maxSize = maxSize;
+        this.ttlMillis = ttlSeconds * 1000L;
+        this.channel = channel.getBytes(StandardCharsets.UTF_8);
+        for (String redisServer : redisServers) {
+            redisSubscribers.add(new RedisSubscriber(redisServer, (_channel, message) -> invalidate(message), this::clear, this.channel));
+        }
+    }
+
+    public byte[] getChannel() {
+        return channel;
+    }
+
+    // 本地没有时用 loader 读取，同一个 key 的并发读取共用一次结果
+    public <T> T get(byte[] key, Class<T> clazz, Supplier<T> loader) {
+        // 先读 generation 再检查订阅，断开后的 clear 一定会让这次读取不缓存
+        long loadGeneration = generation;
+        if (!isSubscribed()) {
+            return loader.get();
+        }
+        String cacheKey = cacheKey(key);
+        Object value = getLocal(cacheKey, clazz);
+        if (value != null) {
+            return clazz.cast(value);
+        }
+        Loading loading = new Loading(loadGeneration);
+        Loading otherLoading = loadingMap.putIfAbsent(cacheKey, loading);
+        if (otherLoading != null) {
+            Object loaded;
+            try {
+                loaded = otherLoading.future.join();
+            }
+            catch (CompletionException e) {
+                // 和自己读取时一样抛出 loader 的异常
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                }
+                if (e.getCause() instanceof Error) {
+                    throw (Error) e.getCause();
+                }
+                throw e;
+            }
+            return clazz.isInstance(loaded) ? clazz.cast(loaded) : loader.get();
+        }
+        try {
+            T loaded = loader.get();
+            if (loaded != null) {
+                put(cacheKey, loaded, loading);
+            }
+            loading.future.complete(loaded);
+            return loaded;
+        }
+        catch (RuntimeException | Error e) {
+            loading.future.completeExceptionally(e);
+            throw e;
+        }
+        finally {
+            loadingMap.remove(cacheKey, loading);
+        }
+    }
+
+    public void invalidate(byte[] key) {
+        String cacheKey = cacheKey(key);
+        synchronized (putLock) {
+            Loading loading = loadingMap.get(cacheKey);
+            if (loading != null) {
+                loading.invalidated = true;
+            }
+            Entry entry = entryMap.get(cacheKey);
+            if (entry != null) {
+                remove(entry);
+            }
+        }
+    }
+
+    public void clear() {
+        synchronized (putLock) {
+            generation++;
+            for (Entry entry : entryMap.values()) {
+                remove(entry);
+            }
+        }
+    }
+
+    public int size() {
+        return entryMap.size();
+    }
+
+    public boolean isSubscribed() {
+        for (RedisSubscriber redisSubscriber : redisSubscribers) {
+            if (!redisSubscriber.isSubscribed()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public void close() {
+        redisSubscribers.forEach(RedisSubscriber::close);
+        clear();
+    }
+
+    // 同一个 redis key 只缓存一种类型的值
+    private Object getLocal(String cacheKey, Class<?> clazz) {
+        Entry entry = entryMap.get(cacheKey);
+        if (entry == null) {
+            return null;
+        }
+        if (entry.expireTime < System.currentTimeMillis()) {
+            remove(entry);
+            return null;
+        }
+        return clazz.isInstance(entry.value) ? entry.value : null;
+    }
+
+    // 和 invalidate、clear 在同一把锁里检查，失效要么在这之前被看到，要么在这之后移除这个值
+    private void put(String cacheKey, Object value, Loading loading) {
+        synchronized (putLock) {
+            if (loading.invalidated || loading.generation != generation) {
+                return;
+            }
+            Entry entry = new Entry(cacheKey, value, System.currentTimeMillis() + ttlMillis);
+            entryQueue.add(entry);
+            if (entryMap.put(cacheKey, entry) != null) {
+                stale();
+            }
+            evict();
+        }
+    }
+
+    private void remove(Entry entry) {
+        if (entryMap.remove(entry.key, entry)) {
+            stale();
+        }
+    }
+
+    private void evict() {
+        while (entryMap.size() > maxSize) {
+            Entry entry = entryQueue.poll();
+            if (entry == null) {
+                return;
+            }
+            if (!entryMap.remove(entry.key, entry)) {
+                staleCount.decrementAndGet();
+            }
+        }
+    }
+
+    // 被替换、失效或过期的 entry 还在 entryQueue 里，数量超过有效的 entry 时清理一次
+    private void stale() {
+        if (staleCount.incrementAndGet() > entryMap.size() + 64) {
+            staleCount.set(0);
+            entryQueue.removeIf(entry -> entryMap.get(entry.key) != entry);
+        }
+    }
+
+    // ISO-8859-1 把每个字节一一映射成一个字符，不同的 byte[] key 不会变成同一个 String
+    private static String cacheKey(byte[] key) {
+        return new String(key, StandardCharsets.ISO_8859_1);
+    }
+
+    private static class Loading {
+
+        private final CompletableFuture<Object> future = new CompletableFuture<>();
+
+        private final long generation;
+
+        // 只在 putLock 里读写
+        private boolean invalidated;
+
+        Loading(long generation) {
+            this.generation = generation;
+        }
+    }
+
+    private static class Entry {
+
+        private final String key;
+
+        private final Object value;
+
+        private final long expireTime;
+
+        Entry(String key, Object value, long expireTime) {
+            this.key = key;
+            this.value = value;
+            this.expireTime = expireTime;
+        }
+    }
+}
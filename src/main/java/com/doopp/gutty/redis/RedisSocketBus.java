@@ -0,0 +1,236 @@
+package com.doopp.gutty.redis;
+
+import com.doopp.gutty.websocket.SocketBroadcaster;
+import com.doopp.gutty.websocket.SocketMetrics;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.JedisPoolConfig;
+
+import java.io.ByteArrayOutputStream;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// 多个节点之间的 websocket 广播
+// 本节点的分组立即发送，其他节点的消息合并成批，二进制编码后通过 redis pub/sub 发布，每个节点只有一个订阅连接
+public class RedisSocketBus implements AutoCloseable {
+
+    private static final Logger logger = LoggerFactory.getLogger(RedisSocketBus.class);
+
+    private static final byte VERSION = 1;
+
+    private static final int HEADER_LENGTH = 1 + 16 + 4;
+
+    private static final byte TEXT = 0;
+
+    private static final byte BINARY = 1;
+
+    private final byte[] channel;
+
+    private final long nodeMostBits;
+
+    private final long nodeLeastBits;
+
+    private final JedisPool jedisPool;
+
+    private final RedisSubscriber redisSubscriber;
+
+    private final SocketBroadcaster socketBroadcaster;
+
+    private final SocketMetrics socketMetrics;
+
+    private final ConcurrentLinkedQueue<BusMessage> pendingMessages = new ConcurrentLinkedQueue<>();
+
+    private final AtomicInteger pendingCount = new AtomicInteger();
+
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+
+    private final ScheduledExecutorService flushExecutor;
+
+    private final long batchMillis;
+
+    private final int maxBatchSize;
+
+    public RedisSocketBus(String redisServer, JedisPoolConfig jedisPoolConfig, SocketBroadcaster socketBroadcaster, SocketMetrics socketMetrics) {
+        this(redisServer, jedisPoolConfig, socketBroadcaster, socketMetrics, "gutty:socket:bus", 5, 256);
+    }
+
+    public RedisSocketBus(String redisServer, JedisPoolConfig jedisPoolConfig, SocketBroadcaster socketBroadcaster, SocketMetrics socketMetrics, String channel, long batchMillis, int maxBatchSize) {
+        UUID nodeId = UUID.randomUUID();
+        this.nodeMostBits = nodeId.getMostSignificantBits();
+        this.nodeLeastBits = nodeId.getLeastSignificantBits();
+        this.channel = channel.getBytes(StandardCharsets.UTF_8);
+        this.batchMillis = batchMillis;
+        this.maxBatchSize = maxBatchSize;
+        this.socketBroadcaster = socketBroadcaster;
+        this.socketMetrics = socketMetrics;
+        this.jedisPool = new JedisPool(jedisPoolConfig, URI.create(redisServer), 2000, 2000);
+        this.redisSubscriber = new RedisSubscriber(redisServer, (c, message) -> receive(message), this.channel);
+        this.flushExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "gutty-socket-bus-flush");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    // 发布文本到所有节点的分组
+    public void publish(String groupName, String text) {
+        byte[] groupBytes = groupBytes(groupName);
+        byte[] payload = text.getBytes(StandardCharsets.UTF_8);
+        socketBroadcaster.broadcastText(groupName, Unpooled.wrappedBuffer(payload));
+        enqueue(new BusMessage(TEXT, groupBytes, payload));
+    }
+
+    // 发布二进制到所有节点的分组
+    public void publish(String groupName, byte[] payload) {
+        byte[] groupBytes = groupBytes(groupName);
+        socketBroadcaster.broadcast(groupName, Unpooled.wrappedBuffer(payload));
+        enqueue(new BusMessage(BINARY, groupBytes, payload));
+    }
+
+    // 分组名的长度按 2 个字节编码
+    private static byte[] groupBytes(String groupName) {
+        byte[] groupBytes = groupName.getBytes(StandardCharsets.UTF_8);
+        if (groupBytes.length > 0xFFFF) {
+            throw new IllegalArgumentException("Group name is longer than 65535 bytes");
+        }
+        return groupBytes;
+    }
+
+    private void enqueue(BusMessage busMessage) {
+        pendingMessages.add(busMessage);
+        int count = pendingCount.incrementAndGet();
+        // 队列从空变成非空时等 batchMillis 再发，攒够一批就立即发
+        if (count == 1) {
+            scheduleFlush(batchMillis);
+        }
+        else if (count >= maxBatchSize && flushScheduled.compareAndSet(false, true)) {
+            if (!scheduleFlush(0)) {
+                flushScheduled.set(false);
+            }
+        }
+    }
+
+    private boolean scheduleFlush(long delayMillis) {
+        try {
+            flushExecutor.schedule(this::flush, delayMillis, TimeUnit.MILLISECONDS);
+            return true;
+        }
+        catch (RejectedExecutionException e) {
+            // 正在关闭，close() 里最后一次 flush 会发出去
+            return false;
+        }
+    }
+
+    private void flush() {
+        flushScheduled.set(false);
+        while (!pendingMessages.isEmpty()) {
+            // version(1) + node id(16) + count(4) + messages
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            bytes.write(new byte[HEADER_LENGTH], 0, HEADER_LENGTH);
+            int count = 0;
+            BusMessage busMessage;
+            while (count < maxBatchSize && (busMessage = pendingMessages.poll()) != null) {
+                pendingCount.decrementAndGet();
+                busMessage.writeTo(bytes);
+                count++;
+            }
+            byte[] packet = bytes.toByteArray();
+            ByteBuffer.wrap(packet).put(VERSION).putLong(nodeMostBits).putLong(nodeLeastBits).putInt(count);
+            try (Jedis jedis = jedisPool.getResource()) {
+                jedis.publish(channel, packet);
+            }
+            catch (Exception e) {
+                // redis 不可用时丢弃这一批，本节点已经发送过，其他节点收不到
+                socketMetrics.busPublishFailed(count);
+                logger.warn("socket bus dropped {} messages, publish to redis failed", count, e);
+                // 剩下的消息不会再有人触发，稍后重试
+                if (!pendingMessages.isEmpty()) {
+                    scheduleFlush(batchMillis);
+                }
+                return;
+            }
+        }
+    }
+
+    private void receive(byte[] message) {
+        ByteBuffer buffer = ByteBuffer.wrap(message);
+        if (buffer.get() != VERSION) {
+            return;
+        }
+        long mostBits = buffer.getLong();
+        long leastBits = buffer.getLong();
+        // 自己发布的消息已经在本节点发送过
+        if (mostBits == nodeMostBits && leastBits == nodeLeastBits) {
+            return;
+        }
+        int count = buffer.getInt();
+        for (int ii = 0; ii < count; ii++) {
+            byte type = buffer.get();
+            byte[] groupBytes = new byte[buffer.getShort() & 0xFFFF];
+            buffer.get(groupBytes);
+            String groupName = new String(groupBytes, StandardCharsets.UTF_8);
+            int length = buffer.getInt();
+            if (socketBroadcaster.size(groupName) == 0) {
+                buffer.position(buffer.position() + length);
+                continue;
+            }
+            // 共享同一个 byte[]，不再复制
+            ByteBuf payload = Unpooled.wrappedBuffer(message, buffer.position(), length);
+            buffer.position(buffer.position() + length);
+            if (type == TEXT) {
+                socketBroadcaster.broadcastText(groupName, payload);
+            }
+            else {
+                socketBroadcaster.broadcast(groupName, payload);
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        // 等正在跑的 flush 结束，再在当前线程发最后一批
+        flushExecutor.shutdown();
+        try {
+            if (!flushExecutor.awaitTermination(5, TimeUnit.SECONDS)) {
+                logger.warn("socket bus flush did not finish in 5 seconds");
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        flush();
+        redisSubscriber.close();
+        jedisPool.close();
+    }
+
+    private static class BusMessage {
+        private final byte type;
+        private final byte[] groupBytes;
+        private final byte[] payload;
+        BusMessage(byte type, byte[] groupBytes, byte[] payload) {
+            this.type = type;
+            this.groupBytes = groupBytes;
+            this.payload = payload;
+        }
+        // type(1) + group length(2) + group + payload length(4) + payload
+        void writeTo(ByteArrayOutputStream bytes) {
+            ByteBuffer header = ByteBuffer.allocate(1 + 2 + groupBytes.length + 4);
+            header.put(type).putShort((short) groupBytes.length).put(groupBytes).putInt(payload.length);
+            bytes.write(header.array(), 0, header.capacity());
+            bytes.write(payload, 0, payload.length);
+        }
+    }
+}
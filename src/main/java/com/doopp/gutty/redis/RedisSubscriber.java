@@ -0,0 +1,108 @@
+package com.doopp.gutty.redis;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import redis.clients.jedis.BinaryJedisPubSub;
+import redis.clients.jedis.Jedis;
+
+import java.net.URI;
+import java.util.function.BiConsumer;
+
+// 一个节点一个订阅连接，独立的线程阻塞读取，断线后自动重连
+public class RedisSubscriber implements AutoCloseable {
+
+    private static final Logger logger = LoggerFactory.getLogger(RedisSubscriber.class);
+
+    private final URI redisServer;
+
+    private final byte[][] channels;
+
+    private final BiConsumer<byte[], byte[]> messageConsumer;
+
+    // 订阅断开后执行一次
+    private final Runnable disconnectListener;
+
+    private final Thread subscribeThread;
+
+    private volatile boolean running = true;
+
+    private volatile BinaryJedisPubSub jedisPubSub;
+
+    public RedisSubscriber(String redisServer, BiConsumer<byte[], byte[]> messageConsumer, byte[]... channels) {
+        this(redisServer, messageConsumer, () -> {}, channels);
+    }
+
+    public RedisSubscriber(String redisServer, BiConsumer<byte[], byte[]> messageConsumer, Runnable disconnectListener, byte[]... channels) {
+        this.redisServer = URI.create(redisServer);
+        this.channels = channels;
+        this.messageConsumer = messageConsumer;
+        this.disconnectListener = disconnectListener;
+        this.subscribeThread = new Thread(this::subscribeLoop, "gutty-redis-subscriber");
+        this.subscribeThread.setDaemon(true);
+        this.subscribeThread.start();
+    }
+
+    public boolean isSubscribed() {
+        BinaryJedisPubSub pubSub = jedisPubSub;
+        return pubSub != null && pubSub.isSubscribed();
+    }
+
+    private void subscribeLoop() {
+        while (running) {
+            // soTimeout 为 0，订阅连接一直阻塞等待消息
+            try (Jedis jedis = new Jedis(redisServer, 2000, 0)) {
+                jedisPubSub = new BinaryJedisPubSub() {
+                    @Override
+                    public void onMessage(byte[] channel, byte[] message) {
+                        try {
+                            messageConsumer.accept(channel, message);
+                        }
+                        catch (Exception e) {
+                            logger.error("redis subscriber consume message failed", e);
+                        }
+                    }
+                };
+                jedis.subscribe(jedisPubSub, channels);
+                disconnected();
+            }
+            catch (Exception e) {
+                disconnected();
+                if (running) {
+                    logger.warn("redis subscriber disconnected, reconnect after 1s : {}", e.getMessage());
+                    try {
+                        Thread.sleep(1000);
+                    }
+                    catch (InterruptedException ie) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                }
+            }
+        }
+    }
+
+    // 断线后旧的 jedisPubSub 还是 subscribed 状态，先清掉再通知
+    private void disconnected() {
+        BinaryJedisPubSub pubSub = jedisPubSub;
+        if (pubSub == null) {
+            return;
+        }
+        jedisPubSub = null;
+        try {
+            disconnectListener.run();
+        }
+        catch (Exception e) {
+            logger.error("redis subscriber disconnect listener failed", e);
+        }
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        BinaryJedisPubSub pubSub = jedisPubSub;
+        if (pubSub != null && pubSub.isSubscribed()) {
+            pubSub.unsubscribe();
+        }
+        subscribeThread.interrupt();
+    }
+}
@@ -1,20 +1,38 @@
 package com.doopp.gutty.redis;
 
-import redis.clients.jedis.JedisPoolConfig;
-import redis.clients.jedis.JedisShardInfo;
-import redis.clients.jedis.ShardedJedis;
-import redis.clients.jedis.ShardedJedisPool;
-
-import java.util.ArrayList;
-import java.util.List;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import redis.clients.jedis.*;
+import redis.clients.jedis.util.SafeEncoder;
+
+import java.lang.reflect.Array;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
 import java.util.function.Function;
+import java.util.function.IntFunction;
+
+public class ShardedJedisHelper implements AutoCloseable {
 
-public class ShardedJedisHelper {
 
     private final ShardedJedisPool shardedJedisPool;
 
     private final SerializableHelper serializableHelper;
 
+    private final String[] redisServers;
+
+    // 批量操作时并行执行多个 shard，第一个 shard 在调用的线程执行
+    // 线程数是连接池 maxTotal * (shard 数 - 1)，不排队，线程用完时在调用的线程执行
+    private final ExecutorService shardExecutor;
+
+    // 本地缓存，enableNearCache 之后使用
+    private volatile RedisNearCache nearCache;
+
     public ShardedJedisHelper(String redisServers, JedisPoolConfig jedisPoolConfig, SerializableHelper serializableHelper) {
         this(redisServers.split(","), jedisPoolConfig, serializableHelper);
     }
@@ -28,12 +46,49 @@ public class ShardedJedisHelper {
             jedisInfoList.add(jedisShardInfo);
         }
         this.serializableHelper = serializableHelper;
+        this.redisServers = redisServers;
+        this.shardExecutor = (redisServers.length > 1)
+                ? new ThreadPoolExecutor(0, Math.max(1, jedisPoolConfig.getMaxTotal()) * (redisServers.length - 1),
+                        60, TimeUnit.SECONDS, new SynchronousQueue<>(), new DefaultThreadFactory("gutty-redis-shard", true))
+                : null;
         this.shardedJedisPool = new ShardedJedisPool(jedisPoolConfig, jedisInfoList);
     }
 
+    // get 先读取本地缓存，通过 helper 的写入会让所有节点的本地缓存失效
+    // 缓存的对象是共享的，不要修改
+    public ShardedJedisHelper enableNearCache(int maxSize, int ttlSeconds) {
+        return enableNearCache(maxSize, ttlSeconds, "gutty:near:cache");
+    }
+
+    public synchronized ShardedJedisHelper enableNearCache(int maxSize, int ttlSeconds, String channel) {
+        if (nearCache == null) {
+            nearCache = new RedisNearCache(redisServers, maxSize, ttlSeconds, channel);
+        }
+        return this;
+    }
+
+    public RedisNearCache getNearCache() {
+        return nearCache;
+    }
+
+    // 关闭本地缓存的订阅连接、shard 线程池和连接池
+    @Override
+    public synchronized void close() {
+        RedisNearCache nearCache = this.nearCache;
+        this.nearCache = null;
+        if (nearCache != null) {
+            nearCache.close();
+        }
+        if (shardExecutor != null) {
+            shardExecutor.shutdown();
+        }
+        shardedJedisPool.close();
+    }
+
     public void setex(String key, int seconds, String value) {
         this.executeJedis((shardedJedis)->{
             shardedJedis.setex(key, seconds, value);
+            invalidate(shardedJedis, SafeEncoder.encode(key));
             return null;
         });
     }
@@ -41,19 +96,25 @@ public class ShardedJedisHelper {
     public void set(String key, String value) {
         this.executeJedis((shardedJedis)->{
             shardedJedis.set(key, value);
+            invalidate(shardedJedis, SafeEncoder.encode(key));
             return null;
         });
     }
 
     public String get(String key) {
+        RedisNearCache nearCache = this.nearCache;
+        if (nearCache != null) {
+            return nearCache.get(SafeEncoder.encode(key), String.class, () -> this.executeJedis((shardedJedis)-> shardedJedis.get(key)));
+        }
         return this.executeJedis((shardedJedis)-> shardedJedis.get(key));
     }
 
+    // 按 shard 分组，每个 shard 一次 DEL
     public void del(String... keys) {
         this.executeJedis((shardedJedis)->{
-            for (String key : keys) {
-                shardedJedis.del(key);
-            }
+            forEachShard(groupByShard(keys.length, ii -> shardedJedis.getShard(keys[ii])),
+                    (jedis, indices) -> jedis.del(select(keys, indices)));
+            invalidate(shardedJedis, SafeEncoder.encodeMany(keys));
             return null;
         });
     }
@@ -61,7 +122,9 @@ public class ShardedJedisHelper {
     public void setex(byte[] key, int seconds, Object object) {
         this.executeJedis((shardedJedis)->{
             byte[] _object = serializableHelper.serialize(object);
-            return shardedJedis.setex(key, seconds, _object);
+            shardedJedis.setex(key, seconds, _object);
+            invalidate(shardedJedis, key);
+            return null;
         });
     }
 
@@ -69,11 +132,16 @@ public class ShardedJedisHelper {
         this.executeJedis((shardedJedis)->{
             byte[] _object = serializableHelper.serialize(object);
             shardedJedis.set(key, _object);
+            invalidate(shardedJedis, key);
             return null;
         });
     }
 
     public <T> T get(byte[] key, Class<T> clazz) {
+        RedisNearCache nearCache = this.nearCache;
+        if (nearCache != null) {
+            return nearCache.get(key, clazz, () -> this.executeJedis((shardedJedis)-> byteToObject(shardedJedis.get(key), clazz)));
+        }
         return this.executeJedis((shardedJedis)->{
             byte[] res = shardedJedis.get(key);
             return byteToObject(res, clazz);
@@ -96,9 +164,9 @@ public class ShardedJedisHelper {
 
     public void del(byte[]... keys) {
         this.executeJedis((shardedJedis)->{
-            for (byte[] key : keys) {
-                shardedJedis.del(key);
-            }
+            forEachShard(groupByShard(keys.length, ii -> shardedJedis.getShard(keys[ii])),
+                    (jedis, indices) -> jedis.del(select(keys, indices)));
+            invalidate(shardedJedis, keys);
             return null;
         });
     }
@@ -191,11 +259,291 @@ public class ShardedJedisHelper {
     }
 
     public Long incr(String key) {
-        return this.executeJedis((shardedJedis)-> shardedJedis.incr(key));
+        return this.executeJedis((shardedJedis)-> {
+            Long value = shardedJedis.incr(key);
+            invalidate(shardedJedis, SafeEncoder.encode(key));
+            return value;
+        });
     }
 
     public Long decr(String key) {
-        return this.executeJedis((shardedJedis)-> shardedJedis.decr(key));
+        return this.executeJedis((shardedJedis)-> {
+            Long value = shardedJedis.decr(key);
+            invalidate(shardedJedis, SafeEncoder.encode(key));
+            return value;
+        });
+    }
+
+    // 批量操作：key 按 shard 分组，每个 shard 一次多 key 命令或一次 pipeline，多个 shard 并行
+    // 返回的结果和 keys 的顺序一致
+
+    public List<String> mget(String... keys) {
+        return this.executeJedis((shardedJedis)->{
+            String[] values = new String[keys.length];
+            forEachShard(groupByShard(keys.length, ii -> shardedJedis.getShard(keys[ii])), (jedis, indices) -> {
+                List<String> shardValues = jedis.mget(select(keys, indices));
+                for (int ii = 0; ii < indices.size(); ii++) {
+                    values[indices.get(ii)] = shardValues.get(ii);
+                }
+            });
+            return Arrays.asList(values);
+        });
+    }
+
+    public <T> List<T> mget(Class<T> clazz, byte[]... keys) {
+        return this.executeJedis((shardedJedis)->{
+            List<T> values = new ArrayList<>(Collections.nCopies(keys.length, null));
+            forEachShard(groupByShard(keys.length, ii -> shardedJedis.getShard(keys[ii])), (jedis, indices) -> {
+                List<byte[]> shardValues = jedis.mget(select(keys, indices));
+                for (int ii = 0; ii < indices.size(); ii++) {
+                    values.set(indices.get(ii), byteToObject(shardValues.get(ii), clazz));
+                }
+            });
+            return values;
+        });
+    }
+
+    public void mset(Map<String, String> keyValues) {
+        String[] keys = keyValues.keySet().toArray(new String[0]);
+        this.executeJedis((shardedJedis)->{
+            forEachShard(groupByShard(keys.length, ii -> shardedJedis.getShard(keys[ii])), (jedis, indices) -> {
+                String[] shardKeyValues = new String[indices.size() * 2];
+                for (int ii = 0; ii < indices.size(); ii++) {
+                    shardKeyValues[ii * 2] = keys[indices.get(ii)];
+                    shardKeyValues[ii * 2 + 1] = keyValues.get(keys[indices.get(ii)]);
+                }
+                jedis.mset(shardKeyValues);
+            });
+            invalidate(shardedJedis, SafeEncoder.encodeMany(keys));
+            return null;
+        });
+    }
+
+    public void msetObject(Map<byte[], ?> keyObjects) {
+        List<Map.Entry<byte[], ?>> entries = new ArrayList<>(keyObjects.entrySet());
+        this.executeJedis((shardedJedis)->{
+            forEachShard(groupByShard(entries.size(), ii -> shardedJedis.getShard(entries.get(ii).getKey())), (jedis, indices) -> {
+                byte[][] shardKeyValues = new byte[indices.size() * 2][];
+                for (int ii = 0; ii < indices.size(); ii++) {
+                    Map.Entry<byte[], ?> entry = entries.get(indices.get(ii));
+                    shardKeyValues[ii * 2] = entry.getKey();
+                    shardKeyValues[ii * 2 + 1] = serializableHelper.serialize(entry.getValue());
+                }
+                jedis.mset(shardKeyValues);
+            });
+            invalidate(shardedJedis, keyObjects.keySet().toArray(new byte[0][]));
+            return null;
+        });
+    }
+
+    // MSET 不能设置过期时间，每个 shard 用一次 pipeline
+    public void setex(Map<String, String> keyValues, int seconds) {
+        String[] keys = keyValues.keySet().toArray(new String[0]);
+        this.executeJedis((shardedJedis)->{
+            forEachShard(groupByShard(keys.length, ii -> shardedJedis.getShard(keys[ii])), (jedis, indices) -> {
+                Pipeline pipeline = jedis.pipelined();
+                for (int index : indices) {
+                    pipeline.setex(keys[index], seconds, keyValues.get(keys[index]));
+                }
+                pipeline.sync();
+            });
+            invalidate(shardedJedis, SafeEncoder.encodeMany(keys));
+            return null;
+        });
+    }
+
+    public void setexObject(Map<byte[], ?> keyObjects, int seconds) {
+        List<Map.Entry<byte[], ?>> entries = new ArrayList<>(keyObjects.entrySet());
+        this.executeJedis((shardedJedis)->{
+            forEachShard(groupByShard(entries.size(), ii -> shardedJedis.getShard(entries.get(ii).getKey())), (jedis, indices) -> {
+                Pipeline pipeline = jedis.pipelined();
+                for (int index : indices) {
+                    Map.Entry<byte[], ?> entry = entries.get(index);
+                    pipeline.setex(entry.getKey(), seconds, serializableHelper.serialize(entry.getValue()));
+                }
+                pipeline.sync();
+            });
+            invalidate(shardedJedis, keyObjects.keySet().toArray(new byte[0][]));
+            return null;
+        });
+    }
+
+    // 多个 hash 的同样的 field
+    public List<List<String>> hmget(List<String> keys, String... fields) {
+        return this.executeJedis((shardedJedis)->{
+            List<List<String>> values = new ArrayList<>(Collections.nCopies(keys.size(), null));
+            forEachShard(groupByShard(keys.size(), ii -> shardedJedis.getShard(keys.get(ii))), (jedis, indices) -> {
+                Pipeline pipeline = jedis.pipelined();
+                List<Response<List<String>>> responses = new ArrayList<>(indices.size());
+                for (int index : indices) {
+                    responses.add(pipeline.hmget(keys.get(index), fields));
+                }
+                pipeline.sync();
+                for (int ii = 0; ii < indices.size(); ii++) {
+                    values.set(indices.get(ii), responses.get(ii).get());
+                }
+            });
+            return values;
+        });
+    }
+
+    public <T> List<List<T>> hmget(Class<T> clazz, List<byte[]> keys, byte[]... fields) {
+        return this.executeJedis((shardedJedis)->{
+            List<List<T>> values = new ArrayList<>(Collections.nCopies(keys.size(), null));
+            forEachShard(groupByShard(keys.size(), ii -> shardedJedis.getShard(keys.get(ii))), (jedis, indices) -> {
+                Pipeline pipeline = jedis.pipelined();
+                List<Response<List<byte[]>>> responses = new ArrayList<>(indices.size());
+                for (int index : indices) {
+                    responses.add(pipeline.hmget(keys.get(index), fields));
+                }
+                pipeline.sync();
+                for (int ii = 0; ii < indices.size(); ii++) {
+                    List<T> objects = new ArrayList<>(fields.length);
+                    for (byte[] value : responses.get(ii).get()) {
+                        objects.add(byteToObject(value, clazz));
+                    }
+                    values.set(indices.get(ii), objects);
+                }
+            });
+            return values;
+        });
+    }
+
+    public List<Map<String, String>> hgetAll(String... keys) {
+        return this.executeJedis((shardedJedis)->{
+            List<Map<String, String>> values = new ArrayList<>(Collections.nCopies(keys.length, null));
+            forEachShard(groupByShard(keys.length, ii -> shardedJedis.getShard(keys[ii])), (jedis, indices) -> {
+                Pipeline pipeline = jedis.pipelined();
+                List<Response<Map<String, String>>> responses = new ArrayList<>(indices.size());
+                for (int index : indices) {
+                    responses.add(pipeline.hgetAll(keys[index]));
+                }
+                pipeline.sync();
+                for (int ii = 0; ii < indices.size(); ii++) {
+                    values.set(indices.get(ii), responses.get(ii).get());
+                }
+            });
+            return values;
+        });
+    }
+
+    // field 按 UTF-8 转成字符串，value 反序列化
+    public <T> List<Map<String, T>> hgetAll(Class<T> clazz, byte[]... keys) {
+        return this.executeJedis((shardedJedis)->{
+            List<Map<String, T>> values = new ArrayList<>(Collections.nCopies(keys.length, null));
+            forEachShard(groupByShard(keys.length, ii -> shardedJedis.getShard(keys[ii])), (jedis, indices) -> {
+                Pipeline pipeline = jedis.pipelined();
+                List<Response<Map<byte[], byte[]>>> responses = new ArrayList<>(indices.size());
+                for (int index : indices) {
+                    responses.add(pipeline.hgetAll(keys[index]));
+                }
+                pipeline.sync();
+                for (int ii = 0; ii < indices.size(); ii++) {
+                    Map<String, T> objects = new LinkedHashMap<>();
+                    for (Map.Entry<byte[], byte[]> entry : responses.get(ii).get().entrySet()) {
+                        objects.put(SafeEncoder.encode(entry.getKey()), byteToObject(entry.getValue(), clazz));
+                    }
+                    values.set(indices.get(ii), objects);
+                }
+            });
+            return values;
+        });
+    }
+
+    // 写入后移除本地缓存，并在 key 所在的 shard 上发布失效消息
+    private void invalidate(ShardedJedis shardedJedis, byte[]... keys) {
+        RedisNearCache nearCache = this.nearCache;
+        if (nearCache == null) {
+            return;
+        }
+        for (byte[] key : keys) {
+            nearCache.invalidate(key);
+        }
+        forEachShard(groupByShard(keys.length, ii -> shardedJedis.getShard(keys[ii])), (jedis, indices) -> {
+            Pipeline pipeline = jedis.pipelined();
+            for (int index : indices) {
+                pipeline.publish(nearCache.getChannel(), keys[index]);
+            }
+            pipeline.sync();
+        });
+    }
+
+    // 每个 shard 的 key 的下标
+    private static Map<Jedis, List<Integer>> groupByShard(int size, IntFunction<Jedis> shard) {
+        Map<Jedis, List<Integer>> shardMap = new IdentityHashMap<>();
+        for (int ii = 0; ii < size; ii++) {
+            shardMap.computeIfAbsent(shard.apply(ii), k -> new ArrayList<>()).add(ii);
+        }
+        return shardMap;
+    }
+
+    // 第一个 shard 在当前线程执行，其他的 shard 并行
+    private void forEachShard(Map<Jedis, List<Integer>> shardMap, BiConsumer<Jedis, List<Integer>> action) {
+        Iterator<Map.Entry<Jedis, List<Integer>>> iterator = shardMap.entrySet().iterator();
+        if (!iterator.hasNext()) {
+            return;
+        }
+        List<Map.Entry<Jedis, List<Integer>>> callerEntries = new ArrayList<>();
+        callerEntries.add(iterator.next());
+        List<Future<?>> futures = new ArrayList<>(shardMap.size() - 1);
+        while (iterator.hasNext()) {
+            Map.Entry<Jedis, List<Integer>> entry = iterator.next();
+            try {
+                futures.add(shardExecutor.submit(() -> action.accept(entry.getKey(), entry.getValue())));
+            }
+            catch (RejectedExecutionException e) {
+                // 线程用完了，在当前线程执行
+                callerEntries.add(entry);
+            }
+        }
+        // 出错时也要等其他 shard 结束，之后 ShardedJedis 才能还给连接池
+        RuntimeException failure = null;
+        for (Map.Entry<Jedis, List<Integer>> entry : callerEntries) {
+            try {
+                action.accept(entry.getKey(), entry.getValue());
+            }
+            catch (RuntimeException e) {
+                if (failure == null) {
+                    failure = e;
+                }
+            }
+        }
+        boolean interrupted = false;
+        for (Future<?> future : futures) {
+            while (true) {
+                try {
+                    future.get();
+                    break;
+                }
+                catch (InterruptedException e) {
+                    interrupted = true;
+                }
+                catch (ExecutionException e) {
+                    if (failure == null) {
+                        // 和当前线程执行时一样抛出原来的异常
+                        failure = (e.getCause() instanceof RuntimeException)
+                                ? (RuntimeException) e.getCause()
+                                : new RuntimeException(e.getCause());
+                    }
+                    break;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <K> K[] select(K[] keys, List<Integer> indices) {
+        K[] selected = (K[]) Array.newInstance(keys.getClass().getComponentType(), indices.size());
+        for (int ii = 0; ii < selected.length; ii++) {
+            selected[ii] = keys[indices.get(ii)];
+        }
+        return selected;
     }
 
     // 不关闭 resource ，复用，重连
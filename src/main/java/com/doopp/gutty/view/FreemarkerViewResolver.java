@@ -1,31 +1,131 @@
 package com.doopp.gutty.view;
 
+import com.google.inject.Inject;
+import com.google.inject.name.Named;
+import freemarker.cache.MruCacheStorage;
 import freemarker.template.*;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufOutputStream;
+import io.netty.util.CharsetUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.OutputStreamWriter;
+import java.io.Writer;
 
 public class FreemarkerViewResolver implements ViewResolver {
 
-    // private Configuration configuration = templateConfiguration();
+    private static final Logger logger = LoggerFactory.getLogger(FreemarkerViewResolver.class);
+
+    // 单例，解析过的模版保存在 configuration 的缓存里
+    private final Configuration configuration = templateConfiguration();
+
+    // 开发模式：监视模版目录，错误输出到页面
+    private boolean development = false;
+
+    // 检查模版是否修改的间隔（秒）
+    private long updateDelay = 60;
+
+    // 启动时解析所有的模版
+    private boolean precompile = false;
+
+    public FreemarkerViewResolver() {
+        updateConfiguration();
+    }
+
+    @Inject(optional = true)
+    public void setDevelopment(@Named("gutty.view.development") boolean development) {
+        this.development = development;
+        updateConfiguration();
+    }
+
+    @Inject(optional = true)
+    public void setUpdateDelay(@Named("gutty.view.updateDelay") long updateDelay) {
+        this.updateDelay = updateDelay;
+        updateConfiguration();
+    }
+
+    @Inject(optional = true)
+    public void setPrecompile(@Named("gutty.view.precompile") boolean precompile) {
+        this.precompile = precompile;
+    }
+
+    // 最多缓存的模版数量，超过的部分用 SoftReference 保存
+    @Inject(optional = true)
+    public void setCacheSize(@Named("gutty.view.cacheSize") int cacheSize) {
+        configuration.setCacheStorage(new MruCacheStorage(cacheSize, Integer.MAX_VALUE));
+    }
+
+    public Configuration getConfiguration() {
+        return configuration;
+    }
+
+    @Override
+    public void prepare() {
+        ClassLoader classLoader = this.getClass().getClassLoader();
+        try {
+            if (precompile) {
+                for (String name : TemplateFiles.list(classLoader, "template", ".html")) {
+                    try {
+                        configuration.getTemplate(name);
+                    }
+                    catch (IOException e) {
+                        logger.warn("Precompile template {} failed : {}", name, e.getMessage());
+                    }
+                }
+            }
+            // 开发模式只移除修改过的模版
+            if (development) {
+                TemplateWatcher.start(TemplateFiles.directories(classLoader, "template"), configuration::removeTemplateFromCache);
+            }
+        }
+        catch (IOException e) {
+            throw new RuntimeException(e.getMessage(), e);
+        }
+    }
 
     // 输出模版
     @Override
     public String template(ModelMap modelMap, String templateName) {
-        Configuration configuration = templateConfiguration();
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        process(modelMap, templateName, new OutputStreamWriter(outputStream, CharsetUtil.UTF_8));
+        return new String(outputStream.toByteArray(), CharsetUtil.UTF_8);
+    }
+
+    // 直接输出到 response 的 content，不经过 String
+    @Override
+    public void template(ModelMap modelMap, String templateName, ByteBuf content) {
+        process(modelMap, templateName, new OutputStreamWriter(new ByteBufOutputStream(content), CharsetUtil.UTF_8));
+    }
+
+    @Override
+    public void template(ModelMap modelMap, String templateName, Writer writer) {
+        process(modelMap, templateName, writer);
+    }
+
+    private void process(ModelMap modelMap, String templateName, Writer writer) {
         try {
             Template template = configuration.getTemplate(templateName.replace(".", "/") + ".html");
-            ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-            template.process(modelMap, new OutputStreamWriter(outputStream));
-            return outputStream.toString("UTF-8");
+            template.process(modelMap, writer);
+            writer.flush();
         }
         catch(IOException | TemplateException e)
         {
-            throw new RuntimeException(e.getMessage());
+            throw new RuntimeException(e.getMessage(), e);
         }
     }
 
+    private void updateConfiguration() {
+        // 生产环境抛出异常，开发时输出到页面
+        configuration.setTemplateExceptionHandler(development
+                ? TemplateExceptionHandler.HTML_DEBUG_HANDLER
+                : TemplateExceptionHandler.RETHROW_HANDLER);
+        // 开发模式由 TemplateWatcher 移除修改过的模版，不再定时检查
+        configuration.setTemplateUpdateDelayMilliseconds(development ? Long.MAX_VALUE : updateDelay * 1000);
+    }
+
     // 配置模版
     private Configuration templateConfiguration() {
         Version version = new Version("2.3.28");
@@ -36,13 +136,7 @@ public class FreemarkerViewResolver implements ViewResolver {
         cfg.setDefaultEncoding("UTF-8");
         // Don't log exceptions inside FreeMarker that it will thrown at you anyway:
         cfg.setLogTemplateExceptions(false);
-        // Sets how errors will appear. Here we assume we are developing HTML pages.
-        // For production systems TemplateExceptionHandler.RETHROW_HANDLER is better.
-        // During web page *development* TemplateExceptionHandler.HTML_DEBUG_HANDLER is better.
-        cfg.setTemplateExceptionHandler(TemplateExceptionHandler.HTML_DEBUG_HANDLER);
         cfg.setClassForTemplateLoading(this.getClass(), "/template");
-        // Bind instance for DI
-        // bind(Configuration.class).toInstance(cfg);
         return cfg;
     }
 }
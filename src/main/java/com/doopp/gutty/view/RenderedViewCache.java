@@ -0,0 +1,169 @@
+package com.doopp.gutty.view;
+
+import com.doopp.gutty.json.MessageConverter;
+import io.netty.buffer.ByteBuf;
+import io.netty.util.CharsetUtil;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// @ViewCache 页面的输出缓存
+// key 是模版名和选中的 model 属性的指纹（序列化后的 SHA-256），创建 key 时计算，不引用 model 里的对象
+// 保存输出的字节，总字节数超过 maxBytes 时移除最早放入的
+public class RenderedViewCache {
+
+    private static final RenderedViewCache renderedViewCache = new RenderedViewCache();
+
+    private final Map<String, Entry> entryMap = new ConcurrentHashMap<>();
+
+    // 放入的顺序，超过 maxBytes 时从头移除
+    private final Queue<Entry> entryQueue = new ConcurrentLinkedQueue<>();
+
+    // entryQueue 里已经不在 entryMap 的数量，太多时清理
+    private final AtomicInteger staleCount = new AtomicInteger();
+
+    private final AtomicLong totalBytes = new AtomicLong();
+
+    private volatile long maxBytes = 16 * 1024 * 1024;
+
+    public static RenderedViewCache getInstance() {
+        return renderedViewCache;
+    }
+
+    public void setMaxBytes(long maxBytes) {
+        this.maxBytes = maxBytes;
+        evict();
+    }
+
+    // 模版名和 model 属性的指纹，有 messageConverter 时按 JSON 序列化，否则按 toString
+    // 属性不能序列化时返回 null，这次不缓存
+    public static String key(String templateName, ModelMap modelMap, String[] attributeNames, MessageConverter messageConverter) {
+        String[] names = attributeNames;
+        if (names.length == 0) {
+            names = modelMap.keySet().toArray(new String[0]);
+            Arrays.sort(names);
+        }
+        StringBuilder fingerprint = new StringBuilder();
+        try {
+            for (String name : names) {
+                Object value = modelMap.get(name);
+                fingerprint.append(name).append('=')
+                        .append((messageConverter != null && value != null) ? messageConverter.toJson(value) : String.valueOf(value))
+                        .append('\n');
+            }
+        }
+        catch (RuntimeException e) {
+            return null;
+        }
+        return templateName + ":" + Base64.getEncoder().encodeToString(sha256(fingerprint.toString()));
+    }
+
+    // 命中时写入 content 并返回 true
+    public boolean write(String key, ByteBuf content) {
+        byte[] bytes = get(key);
+        if (bytes == null) {
+            return false;
+        }
+        content.writeBytes(bytes);
+        return true;
+    }
+
+    public byte[] get(String key) {
+        Entry entry = entryMap.get(key);
+        if (entry == null) {
+            return null;
+        }
+        if (entry.expireTime < System.currentTimeMillis()) {
+            remove(entry);
+            return null;
+        }
+        return entry.bytes;
+    }
+
+    // 保存 content 里从 startIndex 开始的输出
+    public void put(String key, ByteBuf content, int startIndex, int ttl) {
+        byte[] bytes = new byte[content.writerIndex() - startIndex];
+        content.getBytes(startIndex, bytes);
+        put(key, bytes, ttl);
+    }
+
+    public void put(String key, byte[] bytes, int ttl) {
+        if (bytes.length > maxBytes) {
+            return;
+        }
+        Entry entry = new Entry(key, bytes, System.currentTimeMillis() + ttl * 1000L);
+        totalBytes.addAndGet(bytes.length);
+        entryQueue.add(entry);
+        Entry oldEntry = entryMap.put(key, entry);
+        if (oldEntry != null) {
+            totalBytes.addAndGet(-oldEntry.bytes.length);
+            stale();
+        }
+        evict();
+    }
+
+    public void clear() {
+        for (Entry entry : entryMap.values()) {
+            remove(entry);
+        }
+    }
+
+    private void remove(Entry entry) {
+        if (entryMap.remove(entry.key, entry)) {
+            totalBytes.addAndGet(-entry.bytes.length);
+            stale();
+        }
+    }
+
+    private void evict() {
+        while (totalBytes.get() > maxBytes) {
+            Entry entry = entryQueue.poll();
+            if (entry == null) {
+                return;
+            }
+            if (entryMap.remove(entry.key, entry)) {
+                totalBytes.addAndGet(-entry.bytes.length);
+            }
+            else {
+                staleCount.decrementAndGet();
+            }
+        }
+    }
+
+    // 被替换或过期的 entry 还在 entryQueue 里，数量超过有效的 entry 时清理一次
+    private void stale() {
+        if (staleCount.incrementAndGet() > entryMap.size() + 64) {
+            staleCount.set(0);
+            entryQueue.removeIf(entry -> entryMap.get(entry.key) != entry);
+        }
+    }
+
+    private static byte[] sha256(String fingerprint) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(fingerprint.getBytes(CharsetUtil.UTF_8));
+        }
+        catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static class Entry {
+
+        private final String key;
+
+        private final byte[] bytes;
+
+        private final long expireTime;
+
+        Entry(String key, byte[] bytes, long expireTime) {
+            this.key = key;
+            this.bytes = bytes;
+            this.expireTime = expireTime;
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package com.doopp.gutty.view;
+
+import java.io.IOException;
+import java.net.JarURLConnection;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.stream.Stream;
+
+// classpath 下模版目录里的文件，目录和 jar 都可以
+class TemplateFiles {
+
+    // 所有模版的相对路径，例如 user/hello.html
+    static Set<String> list(ClassLoader classLoader, String directory, String suffix) throws IOException {
+        Set<String> names = new TreeSet<>();
+        Enumeration<URL> urls = classLoader.getResources(directory);
+        while (urls.hasMoreElements()) {
+            URL url = urls.nextElement();
+            if (url.getProtocol().equals("file")) {
+                Path root = path(url);
+                try (Stream<Path> paths = Files.walk(root)) {
+                    paths.filter(path -> Files.isRegularFile(path) && path.toString().endsWith(suffix))
+                            .forEach(path -> names.add(relativeName(root, path)));
+                }
+            }
+            else if (url.getProtocol().equals("jar")) {
+                JarURLConnection connection = (JarURLConnection) url.openConnection();
+                connection.setUseCaches(false);
+                try (JarFile jarFile = connection.getJarFile()) {
+                    String prefix = connection.getEntryName() + "/";
+                    for (JarEntry entry : Collections.list(jarFile.entries())) {
+                        if (!entry.isDirectory() && entry.getName().startsWith(prefix) && entry.getName().endsWith(suffix)) {
+                            names.add(entry.getName().substring(prefix.length()));
+                        }
+                    }
+                }
+            }
+        }
+        return names;
+    }
+
+    // 文件系统上的模版目录，在 jar 里的没有
+    static List<Path> directories(ClassLoader classLoader, String directory) throws IOException {
+        List<Path> directories = new ArrayList<>();
+        Enumeration<URL> urls = classLoader.getResources(directory);
+        while (urls.hasMoreElements()) {
+            URL url = urls.nextElement();
+            if (url.getProtocol().equals("file")) {
+                directories.add(path(url));
+            }
+        }
+        return directories;
+    }
+
+    static String relativeName(Path root, Path path) {
+        return root.relativize(path).toString().replace('\\', '/');
+    }
+
+    private static Path path(URL url) throws IOException {
+        try {
+            return Paths.get(url.toURI());
+        }
+        catch (URISyntaxException e) {
+            throw new IOException(e);
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package com.doopp.gutty.view;
+
+import io.netty.util.concurrent.DefaultThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+// 开发模式下监视模版目录，只让修改过的模版从缓存里移除
+class TemplateWatcher implements Runnable {
+
+    private static final Logger logger = LoggerFactory.getLogger(TemplateWatcher.class);
+
+    private final WatchService watchService;
+
+    // 监视的目录 => 模版的根目录
+    private final Map<WatchKey, Path[]> watchKeys = new HashMap<>();
+
+    // 参数是修改过的模版的相对路径，例如 user/hello.html
+    private final Listener changed;
+
+    private TemplateWatcher(List<Path> roots, Listener changed) throws IOException {
+        this.watchService = FileSystems.getDefault().newWatchService();
+        this.changed = changed;
+        for (Path root : roots) {
+            register(root, root);
+        }
+    }
+
+    static void start(List<Path> roots, Listener changed) throws IOException {
+        if (roots.isEmpty()) {
+            return;
+        }
+        new DefaultThreadFactory("gutty-template-watcher", true).newThread(new TemplateWatcher(roots, changed)).start();
+    }
+
+    // 包括所有子目录
+    private void register(Path root, Path directory) throws IOException {
+        try (Stream<Path> paths = Files.walk(directory)) {
+            for (Path path : (Iterable<Path>) paths.filter(Files::isDirectory)::iterator) {
+                WatchKey watchKey = path.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+                watchKeys.put(watchKey, new Path[]{root, path});
+            }
+        }
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            WatchKey watchKey;
+            try {
+                watchKey = watchService.take();
+            }
+            catch (InterruptedException e) {
+                return;
+            }
+            Path[] paths = watchKeys.get(watchKey);
+            for (WatchEvent<?> event : watchKey.pollEvents()) {
+                if (paths == null || event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                    continue;
+                }
+                Path path = paths[1].resolve((Path) event.context());
+                try {
+                    // 新建的目录也要监视
+                    if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE && Files.isDirectory(path)) {
+                        register(paths[0], path);
+                    }
+                    else {
+                        changed.changed(TemplateFiles.relativeName(paths[0], path));
+                    }
+                }
+                catch (Exception e) {
+                    logger.warn("Template watcher failed on {}", path, e);
+                }
+            }
+            if (!watchKey.reset()) {
+                watchKeys.remove(watchKey);
+            }
+        }
+    }
+
+    interface Listener {
+
+        void changed(String name) throws Exception;
+    }
+}
@@ -1,41 +1,159 @@
 package com.doopp.gutty.view;
 
+import com.google.inject.Inject;
+import com.google.inject.name.Named;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufOutputStream;
+import io.netty.util.CharsetUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.thymeleaf.TemplateEngine;
+import org.thymeleaf.cache.StandardCacheManager;
 import org.thymeleaf.context.Context;
 import org.thymeleaf.templatemode.TemplateMode;
-import org.thymeleaf.templateresolver.FileTemplateResolver;
+import org.thymeleaf.templateresolver.ClassLoaderTemplateResolver;
+
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 
 public class ThymeleafViewResolver implements ViewResolver {
 
+    private static final Logger logger = LoggerFactory.getLogger(ThymeleafViewResolver.class);
 
-    // private FileTemplateResolver templateResolver = templateResolver();
+    // 从 classpath 的 /template 读取，在 jar 里也可以使用
+    private final ClassLoaderTemplateResolver templateResolver = templateResolver();
 
-    @Override
-    public String template(ModelMap modelMap, String templateName) {
+    private final StandardCacheManager cacheManager = new StandardCacheManager();
+
+    // 单例，解析过的模版保存在 engine 的缓存里
+    private final TemplateEngine engine = new TemplateEngine();
+
+    // 开发模式：监视模版目录
+    private boolean development = false;
 
-        FileTemplateResolver templateResolver = templateResolver();
+    // 模版缓存的时间（秒）
+    private long updateDelay = 60;
 
-        // String controllerName = handleObject.getClass().getSimpleName();
-        // String templateDirectory = controllerName.toLowerCase().substring(0, controllerName.length() - "handle".length());
-        templateResolver.setPrefix(this.getClass().getResource("/template/").getPath() + "/");
+    // 启动时解析所有的模版
+    private boolean precompile = false;
 
-        TemplateEngine engine = new TemplateEngine();
+    public ThymeleafViewResolver() {
         engine.setTemplateResolver(templateResolver);
+        engine.setCacheManager(cacheManager);
+        updateConfiguration();
+    }
+
+    @Inject(optional = true)
+    public void setDevelopment(@Named("gutty.view.development") boolean development) {
+        this.development = development;
+        updateConfiguration();
+    }
+
+    @Inject(optional = true)
+    public void setUpdateDelay(@Named("gutty.view.updateDelay") long updateDelay) {
+        this.updateDelay = updateDelay;
+        updateConfiguration();
+    }
+
+    @Inject(optional = true)
+    public void setPrecompile(@Named("gutty.view.precompile") boolean precompile) {
+        this.precompile = precompile;
+    }
+
+    // 最多缓存的模版数量，需要在第一次输出模版前设置
+    @Inject(optional = true)
+    public void setCacheSize(@Named("gutty.view.cacheSize") int cacheSize) {
+        cacheManager.setTemplateCacheMaxSize(cacheSize);
+    }
 
+    public TemplateEngine getEngine() {
+        return engine;
+    }
+
+    @Override
+    public void prepare() {
+        ClassLoader classLoader = this.getClass().getClassLoader();
+        try {
+            // 用空的 model 输出一次，模版在输出前解析并放入缓存，输出时的错误可以忽略
+            if (precompile) {
+                for (String name : TemplateFiles.list(classLoader, "template", ".html")) {
+                    try {
+                        engine.process(name.substring(0, name.length() - ".html".length()), new Context(), new NullWriter());
+                    }
+                    catch (RuntimeException e) {
+                        logger.debug("Precompile template {} : {}", name, e.getMessage());
+                    }
+                }
+            }
+            // 开发模式只移除修改过的模版
+            if (development) {
+                TemplateWatcher.start(TemplateFiles.directories(classLoader, "template"),
+                        name -> engine.clearTemplateCacheFor(name.substring(0, name.length() - ".html".length())));
+            }
+        }
+        catch (IOException e) {
+            throw new RuntimeException(e.getMessage(), e);
+        }
+    }
+
+    @Override
+    public String template(ModelMap modelMap, String templateName) {
+        return engine.process(templateName, context(modelMap));
+    }
+
+    // 直接输出到 response 的 content，不经过 String
+    @Override
+    public void template(ModelMap modelMap, String templateName, ByteBuf content) {
+        Writer writer = new OutputStreamWriter(new ByteBufOutputStream(content), CharsetUtil.UTF_8);
+        engine.process(templateName, context(modelMap), writer);
+        try {
+            writer.flush();
+        }
+        catch (IOException e) {
+            throw new RuntimeException(e.getMessage(), e);
+        }
+    }
+
+    @Override
+    public void template(ModelMap modelMap, String templateName, Writer writer) {
+        engine.process(templateName, context(modelMap), writer);
+    }
+
+    private static Context context(ModelMap modelMap) {
         Context context = new Context();
         context.setVariables(modelMap);
+        return context;
+    }
 
-        return engine.process(templateName, context);
+    private void updateConfiguration() {
+        // 开发模式由 TemplateWatcher 移除修改过的模版，缓存不过期
+        templateResolver.setCacheTTLMs(development ? null : updateDelay * 1000);
     }
 
     // 配置模版
-    private FileTemplateResolver templateResolver() {
-        FileTemplateResolver templateResolver = new FileTemplateResolver();
-        // templateResolver.setPrefix(this.getClass().getResource("/template/" + templateDirectory).getPath() + "/");
+    private static ClassLoaderTemplateResolver templateResolver() {
+        ClassLoaderTemplateResolver templateResolver = new ClassLoaderTemplateResolver();
+        templateResolver.setPrefix("template/");
         templateResolver.setSuffix(".html");
+        templateResolver.setCharacterEncoding("UTF-8");
         templateResolver.setTemplateMode(TemplateMode.HTML);
-        templateResolver.setCacheable(false);
-        templateResolver.setTemplateMode("HTML5");
+        templateResolver.setCacheable(true);
         return templateResolver;
     }
+
+    private static class NullWriter extends Writer {
+
+        @Override
+        public void write(char[] cbuf, int off, int len) {
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void close() {
+        }
+    }
 }
@@ -0,0 +1,235 @@
+package com.doopp.gutty.view;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.stream.ChunkedInput;
+import io.netty.handler.stream.ChunkedWriteHandler;
+import io.netty.util.CharsetUtil;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.concurrent.*;
+
+// 模版在 render 线程输出，每满 chunkSize 字节交给 ChunkedWriteHandler 发送
+// ChunkedWriteHandler 在 channel 可写时才读取下一块，等待发送的块超过 maxChunks 时 render 线程暂停，
+// 每个请求的内存占用和页面的大小无关
+public class ViewChunkedInput implements ChunkedInput<ByteBuf> {
+
+    private static final Logger logger = LoggerFactory.getLogger(ViewChunkedInput.class);
+
+    // render 线程的数量，每个慢的客户端会占用一个线程，所以有上限
+    private static volatile int renderThreads = Runtime.getRuntime().availableProcessors() * 2;
+
+    private static volatile ExecutorService renderExecutor;
+
+    // 输出结束的标记
+    private static final Object END = new Object();
+
+    private final BlockingQueue<Object> chunkQueue;
+
+    private final ByteBufAllocator allocator;
+
+    private final int chunkSize;
+
+    // 有新的块时通知 ChunkedWriteHandler 继续发送
+    private final Runnable resume;
+
+    private volatile boolean closed;
+
+    private boolean ended;
+
+    private long progress;
+
+    public ViewChunkedInput(ByteBufAllocator allocator, int chunkSize, int maxChunks, Runnable resume) {
+        this.chunkQueue = new ArrayBlockingQueue<>(maxChunks + 1);
+        this.allocator = allocator;
+        this.chunkSize = chunkSize;
+        this.resume = resume;
+    }
+
+    // 0 是 cpu * 2，需要在第一次输出前设置
+    public static void setRenderThreads(int renderThreads) {
+        ViewChunkedInput.renderThreads = (renderThreads > 0) ? renderThreads : Runtime.getRuntime().availableProcessors() * 2;
+    }
+
+    // 没有空闲的 render 线程时返回 null，由调用的地方一次输出整个页面
+    public static ViewChunkedInput render(ViewResolver viewResolver, ModelMap modelMap, String templateName, ChannelHandlerContext ctx, int chunkSize, int maxChunks) {
+        ChunkedWriteHandler chunkedWriteHandler = ctx.pipeline().get(ChunkedWriteHandler.class);
+        ViewChunkedInput chunkedInput = new ViewChunkedInput(ctx.alloc(), chunkSize, maxChunks, chunkedWriteHandler::resumeTransfer);
+        try {
+            renderExecutor().execute(() -> chunkedInput.render(viewResolver, modelMap, templateName));
+        }
+        catch (RejectedExecutionException e) {
+            return null;
+        }
+        return chunkedInput;
+    }
+
+    // 线程都在使用时不排队，直接拒绝
+    private static ExecutorService renderExecutor() {
+        if (renderExecutor == null) {
+            synchronized (ViewChunkedInput.class) {
+                if (renderExecutor == null) {
+                    renderExecutor = new ThreadPoolExecutor(0, renderThreads, 60, TimeUnit.SECONDS,
+                            new SynchronousQueue<>(), new DefaultThreadFactory("gutty-view-render", true));
+                }
+            }
+        }
+        return renderExecutor;
+    }
+
+    private void render(ViewResolver viewResolver, ModelMap modelMap, String templateName) {
+        ChunkOutputStream outputStream = new ChunkOutputStream();
+        try {
+            Writer writer = new OutputStreamWriter(outputStream, CharsetUtil.UTF_8);
+            viewResolver.template(modelMap, templateName, writer);
+            writer.close();
+            offer(END);
+        }
+        catch (Exception e) {
+            outputStream.release();
+            if (!closed) {
+                logger.error("Render template {} failed", templateName, e);
+                offer(e);
+            }
+        }
+    }
+
+    // 队列满的时候等待，channel 关闭后放弃
+    private void offer(Object chunk) {
+        try {
+            while (!chunkQueue.offer(chunk, 100, TimeUnit.MILLISECONDS)) {
+                if (closed) {
+                    release(chunk);
+                    return;
+                }
+            }
+        }
+        catch (InterruptedException e) {
+            release(chunk);
+            Thread.currentThread().interrupt();
+            return;
+        }
+        resume.run();
+    }
+
+    @Override
+    public boolean isEndOfInput() {
+        return ended || chunkQueue.peek() == END;
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        for (Object chunk = chunkQueue.poll(); chunk != null; chunk = chunkQueue.poll()) {
+            release(chunk);
+        }
+    }
+
+    @Deprecated
+    @Override
+    public ByteBuf readChunk(ChannelHandlerContext ctx) throws Exception {
+        return readChunk(ctx.alloc());
+    }
+
+    // 还没有输出新的块时返回 null，等 resume 之后再读取
+    @Override
+    public ByteBuf readChunk(ByteBufAllocator allocator) throws Exception {
+        Object chunk = chunkQueue.poll();
+        if (chunk == null) {
+            return null;
+        }
+        if (chunk == END) {
+            ended = true;
+            return null;
+        }
+        // 输出到一半失败了，ChunkedWriteHandler 让这次写入失败
+        if (chunk instanceof Exception) {
+            ended = true;
+            throw (Exception) chunk;
+        }
+        ByteBuf byteBuf = (ByteBuf) chunk;
+        progress += byteBuf.readableBytes();
+        return byteBuf;
+    }
+
+    @Override
+    public long length() {
+        return -1;
+    }
+
+    @Override
+    public long progress() {
+        return progress;
+    }
+
+    private static void release(Object chunk) {
+        if (chunk instanceof ByteBuf) {
+            ((ByteBuf) chunk).release();
+        }
+    }
+
+    // 写满 chunkSize 字节时放入队列
+    private class ChunkOutputStream extends OutputStream {
+
+        private ByteBuf chunk;
+
+        @Override
+        public void write(int b) throws IOException {
+            buffer().writeByte(b);
+            if (chunk.readableBytes() >= chunkSize) {
+                flushChunk();
+            }
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                int length = Math.min(len, chunkSize - buffer().readableBytes());
+                chunk.writeBytes(b, off, length);
+                off += length;
+                len -= length;
+                if (chunk.readableBytes() >= chunkSize) {
+                    flushChunk();
+                }
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (chunk != null && chunk.isReadable()) {
+                flushChunk();
+            }
+            release();
+        }
+
+        private ByteBuf buffer() throws IOException {
+            if (closed) {
+                throw new IOException("Channel closed");
+            }
+            if (chunk == null) {
+                chunk = allocator.buffer(chunkSize);
+            }
+            return chunk;
+        }
+
+        private void flushChunk() {
+            ByteBuf byteBuf = chunk;
+            chunk = null;
+            offer(byteBuf);
+        }
+
+        void release() {
+            if (chunk != null) {
+                chunk.release();
+                chunk = null;
+            }
+        }
+    }
+}
@@ -1,6 +1,31 @@
 package com.doopp.gutty.view;
 
+import io.netty.buffer.ByteBuf;
+import io.netty.util.CharsetUtil;
+
+import java.io.IOException;
+import java.io.Writer;
+
 public interface ViewResolver {
 
     String template(ModelMap modelMap, String templateName);
+
+    // 启动时执行，在端口绑定之前
+    default void prepare() {
+    }
+
+    // 输出到 response 的 content，默认先输出成 String
+    default void template(ModelMap modelMap, String templateName, ByteBuf content) {
+        content.writeCharSequence(template(modelMap, templateName), CharsetUtil.UTF_8);
+    }
+
+    // 边输出边发送（@ChunkedView），默认先输出成 String
+    default void template(ModelMap modelMap, String templateName, Writer writer) {
+        try {
+            writer.write(template(modelMap, templateName));
+        }
+        catch (IOException e) {
+            throw new RuntimeException(e.getMessage(), e);
+        }
+    }
 }
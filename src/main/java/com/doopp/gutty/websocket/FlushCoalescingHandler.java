@@ -0,0 +1,100 @@
+package com.doopp.gutty.websocket;
+
+import io.netty.channel.ChannelDuplexHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
+import io.netty.handler.codec.http.websocketx.CloseWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.PingWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.PongWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.WebSocketFrame;
+
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+// 合并 websocket 的 flush
+// 高频推送的每次 writeAndFlush 只写入，等到 flushDelay 毫秒后或者待发送的数据超过 flushBytes 时才真正 flush 一次，
+// 控制帧和关闭连接时立即 flush
+public class FlushCoalescingHandler extends ChannelDuplexHandler {
+
+    private final long flushDelayNanos;
+
+    private final int flushBytes;
+
+    private final SocketMetrics socketMetrics;
+
+    private int pendingBytes;
+
+    private boolean pendingFlush;
+
+    private boolean urgent;
+
+    private ScheduledFuture<?> flushFuture;
+
+    public FlushCoalescingHandler(int flushDelayMillis, int flushBytes, SocketMetrics socketMetrics) {
+        this.flushDelayNanos = TimeUnit.MILLISECONDS.toNanos(flushDelayMillis);
+        this.flushBytes = flushBytes;
+        this.socketMetrics = socketMetrics;
+    }
+
+    @Override
+    public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) {
+        if (msg instanceof PingWebSocketFrame || msg instanceof PongWebSocketFrame || msg instanceof CloseWebSocketFrame) {
+            urgent = true;
+        }
+        else if (msg instanceof WebSocketFrame) {
+            pendingBytes += ((WebSocketFrame) msg).content().readableBytes();
+        }
+        ctx.write(msg, promise);
+    }
+
+    @Override
+    public void flush(ChannelHandlerContext ctx) {
+        if (urgent || pendingBytes >= flushBytes) {
+            flushNow(ctx);
+            return;
+        }
+        if (pendingFlush) {
+            socketMetrics.flushCoalesced();
+            return;
+        }
+        pendingFlush = true;
+        flushFuture = ctx.executor().schedule(() -> {
+            flushFuture = null;
+            flushNow(ctx);
+        }, flushDelayNanos, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public void close(ChannelHandlerContext ctx, ChannelPromise promise) throws Exception {
+        flushNow(ctx);
+        super.close(ctx, promise);
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        cancelFlush();
+        super.channelInactive(ctx);
+    }
+
+    @Override
+    public void handlerRemoved(ChannelHandlerContext ctx) {
+        if (pendingFlush) {
+            flushNow(ctx);
+        }
+    }
+
+    private void flushNow(ChannelHandlerContext ctx) {
+        cancelFlush();
+        pendingBytes = 0;
+        urgent = false;
+        ctx.flush();
+    }
+
+    private void cancelFlush() {
+        pendingFlush = false;
+        if (flushFuture != null) {
+            flushFuture.cancel(false);
+            flushFuture = null;
+        }
+    }
+}
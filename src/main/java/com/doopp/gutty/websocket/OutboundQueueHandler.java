@@ -0,0 +1,199 @@
+package com.doopp.gutty.websocket;
+
+import io.netty.channel.*;
+import io.netty.handler.codec.http.websocketx.CloseWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.PingWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.PongWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.WebSocketFrame;
+import io.netty.util.ReferenceCountUtil;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+
+// 每个 websocket 连接一个有界的发送队列
+// channel 可写时直接写出，不可写时排队，可写后批量写出并只 flush 一次，队列满了按 SlowConsumerPolicy 处理
+public class OutboundQueueHandler extends ChannelDuplexHandler {
+
+    private static final DroppedFrameException DROPPED_FRAME_EXCEPTION = new DroppedFrameException();
+
+    private final int capacity;
+
+    private final SlowConsumerPolicy policy;
+
+    private final SocketMetrics socketMetrics;
+
+    private final ArrayDeque<QueuedFrame> queue = new ArrayDeque<>();
+
+    // coalesce key => 排队中的帧
+    private final Map<String, QueuedFrame> keyedFrames = new HashMap<>();
+
+    // 已经写出了 Close 帧
+    private boolean closeWritten;
+
+    public OutboundQueueHandler(int capacity, SlowConsumerPolicy policy, SocketMetrics socketMetrics) {
+        this.capacity = capacity;
+        this.policy = policy;
+        this.socketMetrics = socketMetrics;
+    }
+
+    // 写入带 coalesce key 的帧，COALESCE 策略下同一个 key 在队列里只保留最新的一帧
+    public static ChannelFuture writeAndFlush(Channel channel, String coalesceKey, WebSocketFrame frame) {
+        if (channel.pipeline().get(OutboundQueueHandler.class) == null) {
+            return channel.writeAndFlush(frame);
+        }
+        return channel.writeAndFlush(new KeyedFrame(coalesceKey, frame));
+    }
+
+    @Override
+    public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) {
+        String key = null;
+        if (msg instanceof KeyedFrame) {
+            key = ((KeyedFrame) msg).key;
+            msg = ((KeyedFrame) msg).frame;
+        }
+        // Close 之后不能再发送其他帧，还在排队的帧丢弃
+        if (msg instanceof CloseWebSocketFrame) {
+            releaseQueue();
+            closeWritten = true;
+            ctx.write(msg, promise);
+            return;
+        }
+        // 控制帧和非 websocket 的数据不排队
+        if (!(msg instanceof WebSocketFrame) || msg instanceof PingWebSocketFrame || msg instanceof PongWebSocketFrame) {
+            ctx.write(msg, promise);
+            return;
+        }
+        if (closeWritten) {
+            drop(msg, promise);
+            return;
+        }
+        if (queue.isEmpty() && ctx.channel().isWritable()) {
+            ctx.write(msg, promise);
+            return;
+        }
+        if (policy == SlowConsumerPolicy.COALESCE && key != null) {
+            QueuedFrame queuedFrame = keyedFrames.get(key);
+            if (queuedFrame != null) {
+                drop(queuedFrame.frame, queuedFrame.promise);
+                queuedFrame.frame = msg;
+                queuedFrame.promise = promise;
+                return;
+            }
+        }
+        if (queue.size() >= capacity) {
+            if (policy == SlowConsumerPolicy.DROP_NEWEST) {
+                drop(msg, promise);
+                return;
+            }
+            else if (policy == SlowConsumerPolicy.DISCONNECT) {
+                drop(msg, promise);
+                releaseQueue();
+                socketMetrics.slowConsumerDisconnected();
+                ctx.close();
+                return;
+            }
+            QueuedFrame oldest = poll();
+            drop(oldest.frame, oldest.promise);
+        }
+        QueuedFrame queuedFrame = new QueuedFrame(key, msg, promise);
+        queue.add(queuedFrame);
+        if (key != null && policy == SlowConsumerPolicy.COALESCE) {
+            keyedFrames.put(key, queuedFrame);
+        }
+        socketMetrics.frameQueued();
+    }
+
+    @Override
+    public void flush(ChannelHandlerContext ctx) {
+        drain(ctx);
+        ctx.flush();
+    }
+
+    @Override
+    public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception {
+        if (ctx.channel().isWritable() && !queue.isEmpty()) {
+            drain(ctx);
+            ctx.flush();
+        }
+        super.channelWritabilityChanged(ctx);
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        releaseQueue();
+        super.channelInactive(ctx);
+    }
+
+    @Override
+    public void handlerRemoved(ChannelHandlerContext ctx) {
+        releaseQueue();
+    }
+
+    public int queueSize() {
+        return queue.size();
+    }
+
+    // 可写的时候把队列里的帧写出，由调用方统一 flush
+    private void drain(ChannelHandlerContext ctx) {
+        while (!queue.isEmpty() && ctx.channel().isWritable()) {
+            QueuedFrame queuedFrame = poll();
+            ctx.write(queuedFrame.frame, queuedFrame.promise);
+        }
+    }
+
+    private QueuedFrame poll() {
+        QueuedFrame queuedFrame = queue.poll();
+        if (queuedFrame != null) {
+            if (queuedFrame.key != null) {
+                keyedFrames.remove(queuedFrame.key, queuedFrame);
+            }
+            socketMetrics.frameDequeued();
+        }
+        return queuedFrame;
+    }
+
+    private void releaseQueue() {
+        QueuedFrame queuedFrame;
+        while ((queuedFrame = poll()) != null) {
+            drop(queuedFrame.frame, queuedFrame.promise);
+        }
+    }
+
+    private void drop(Object frame, ChannelPromise promise) {
+        ReferenceCountUtil.release(frame);
+        if (!promise.isVoid()) {
+            promise.tryFailure(DROPPED_FRAME_EXCEPTION);
+        }
+        socketMetrics.frameDropped();
+    }
+
+    private static class QueuedFrame {
+        private final String key;
+        private Object frame;
+        private ChannelPromise promise;
+        QueuedFrame(String key, Object frame, ChannelPromise promise) {
+            this.key = key;
+            this.frame = frame;
+            this.promise = promise;
+        }
+    }
+
+    private static class KeyedFrame {
+        private final String key;
+        private final WebSocketFrame frame;
+        KeyedFrame(String key, WebSocketFrame frame) {
+            this.key = key;
+            this.frame = frame;
+        }
+    }
+
+    public static class DroppedFrameException extends RuntimeException {
+
+        private static final long serialVersionUID = 1L;
+
+        DroppedFrameException() {
+            super("websocket frame dropped by the outbound queue", null, false, false);
+        }
+    }
+}
@@ -0,0 +1,17 @@
+package com.doopp.gutty.websocket;
+
+// 发送队列满了以后的处理方式
+public enum SlowConsumerPolicy {
+
+    // 丢弃队列里最早的帧
+    DROP_OLDEST,
+
+    // 丢弃新写入的帧
+    DROP_NEWEST,
+
+    // 同一个 key 只保留最新的帧，没有 key 的帧按 DROP_OLDEST 处理
+    COALESCE,
+
+    // 断开连接
+    DISCONNECT
+}
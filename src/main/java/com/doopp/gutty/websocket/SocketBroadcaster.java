@@ -0,0 +1,198 @@
+package com.doopp.gutty.websocket;
+
+import com.doopp.gutty.Gutty;
+import com.doopp.gutty.json.MessageConverter;
+import com.google.inject.Inject;
+import com.google.inject.Injector;
+import com.google.inject.Singleton;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.group.ChannelGroup;
+import io.netty.channel.group.DefaultChannelGroup;
+import io.netty.handler.codec.http.websocketx.BinaryWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.WebSocketFrame;
+import io.netty.util.Attribute;
+import io.netty.util.AttributeKey;
+import io.netty.util.concurrent.GlobalEventExecutor;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Function;
+
+// 按名称分组的 websocket 广播
+// payload 只编码一次，每个成员写入同一个 ByteBuf 的 retainedDuplicate，不可写的成员会被跳过，关闭的 channel 自动退出分组
+@Singleton
+public class SocketBroadcaster {
+
+    // channel 加入的分组名，每个 channel 只注册一个 close 监听
+    private static final AttributeKey<Set<String>> GROUP_NAMES = AttributeKey.valueOf("gutty.groupNames");
+
+    // 分组名 => 分组
+    private final ConcurrentMap<String, ChannelGroup> channelGroups = new ConcurrentHashMap<>();
+
+    @Inject
+    private Injector injector;
+
+    // 加入分组
+    public boolean subscribe(String groupName, Channel channel) {
+        // 已经关闭的 channel 不加入，否则会留下空的分组
+        if (!channel.isActive()) {
+            return false;
+        }
+        // 先记下分组名，加入时正好关闭也能被 close 监听移除
+        groupNames(channel).add(groupName);
+        boolean[] added = new boolean[1];
+        // 在 compute 里加入，空分组不会在查找和加入之间被移除
+        channelGroups.compute(groupName, (k, channelGroup) -> {
+            if (channelGroup == null) {
+                channelGroup = new DefaultChannelGroup(k, GlobalEventExecutor.INSTANCE);
+            }
+            added[0] = channelGroup.add(channel);
+            return channelGroup;
+        });
+        // 加入之后才关闭的，close 监听可能已经执行过了
+        if (!channel.isActive()) {
+            unsubscribe(groupName, channel);
+            return false;
+        }
+        return added[0];
+    }
+
+    // 退出分组
+    public boolean unsubscribe(String groupName, Channel channel) {
+        ChannelGroup channelGroup = channelGroups.get(groupName);
+        Set<String> groupNames = channel.attr(GROUP_NAMES).get();
+        if (groupNames != null) {
+            groupNames.remove(groupName);
+        }
+        if (channelGroup == null || !channelGroup.remove(channel)) {
+            return false;
+        }
+        removeIfEmpty(groupName);
+        return true;
+    }
+
+    // 退出所有分组
+    public void unsubscribeAll(Channel channel) {
+        Set<String> groupNames = channel.attr(GROUP_NAMES).get();
+        if (groupNames == null) {
+            return;
+        }
+        for (String groupName : groupNames.toArray(new String[0])) {
+            unsubscribe(groupName, channel);
+        }
+    }
+
+    // channel 的分组名，第一次加入分组时注册 close 监听
+    private Set<String> groupNames(Channel channel) {
+        Attribute<Set<String>> attribute = channel.attr(GROUP_NAMES);
+        Set<String> groupNames = attribute.get();
+        if (groupNames == null) {
+            Set<String> newGroupNames = ConcurrentHashMap.newKeySet();
+            groupNames = attribute.setIfAbsent(newGroupNames);
+            if (groupNames == null) {
+                groupNames = newGroupNames;
+                // 关闭时退出所有分组，可能比分组自己的 close 监听先执行
+                channel.closeFuture().addListener(future -> unsubscribeAll(channel));
+            }
+        }
+        return groupNames;
+    }
+
+    public Set<String> groupNames() {
+        return Collections.unmodifiableSet(channelGroups.keySet());
+    }
+
+    public ChannelGroup group(String groupName) {
+        return channelGroups.get(groupName);
+    }
+
+    public int size(String groupName) {
+        ChannelGroup channelGroup = channelGroups.get(groupName);
+        return (channelGroup == null) ? 0 : channelGroup.size();
+    }
+
+    // 广播文本
+    public int broadcast(String groupName, String text) {
+        ChannelGroup channelGroup = channelGroups.get(groupName);
+        if (channelGroup == null || channelGroup.isEmpty()) {
+            return 0;
+        }
+        return broadcast(channelGroup, ByteBufUtil.writeUtf8(ByteBufAllocator.DEFAULT, text), TextWebSocketFrame::new);
+    }
+
+    // 广播已经是 UTF-8 编码的文本，content 的引用由广播接管
+    public int broadcastText(String groupName, ByteBuf content) {
+        ChannelGroup channelGroup = channelGroups.get(groupName);
+        if (channelGroup == null || channelGroup.isEmpty()) {
+            content.release();
+            return 0;
+        }
+        return broadcast(channelGroup, content, TextWebSocketFrame::new);
+    }
+
+    // 广播二进制
+    public int broadcast(String groupName, byte[] bytes) {
+        return broadcast(groupName, Unpooled.wrappedBuffer(bytes));
+    }
+
+    // 广播二进制，content 的引用由广播接管
+    public int broadcast(String groupName, ByteBuf content) {
+        ChannelGroup channelGroup = channelGroups.get(groupName);
+        if (channelGroup == null || channelGroup.isEmpty()) {
+            content.release();
+            return 0;
+        }
+        return broadcast(channelGroup, content, BinaryWebSocketFrame::new);
+    }
+
+    // 广播 Json
+    public int broadcastJson(String groupName, Object object) {
+        MessageConverter messageConverter = Gutty.getInstance(injector, MessageConverter.class);
+        if (messageConverter == null) {
+            throw new IllegalStateException("No MessageConverter is configured");
+        }
+        ChannelGroup channelGroup = channelGroups.get(groupName);
+        if (channelGroup == null || channelGroup.isEmpty()) {
+            return 0;
+        }
+        // 直接序列化到 ByteBuf
+        ByteBuf content = ByteBufAllocator.DEFAULT.buffer();
+        try {
+            messageConverter.write(object, content);
+        }
+        catch (RuntimeException e) {
+            content.release();
+            throw e;
+        }
+        return broadcast(channelGroup, content, TextWebSocketFrame::new);
+    }
+
+    private int broadcast(ChannelGroup channelGroup, ByteBuf content, Function<ByteBuf, WebSocketFrame> frameFactory) {
+        int written = 0;
+        try {
+            for (Channel channel : channelGroup) {
+                // 消费太慢的成员，不在它的发送缓冲里堆积帧
+                if (!channel.isActive() || !channel.isWritable()) {
+                    continue;
+                }
+                channel.writeAndFlush(frameFactory.apply(content.retainedDuplicate()), channel.voidPromise());
+                written++;
+            }
+        }
+        finally {
+            content.release();
+        }
+        return written;
+    }
+
+    private void removeIfEmpty(String groupName) {
+        channelGroups.computeIfPresent(groupName, (k, channelGroup) -> channelGroup.isEmpty() ? null : channelGroup);
+    }
+}
@@ -0,0 +1,149 @@
+package com.doopp.gutty.websocket;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.google.inject.name.Named;
+import io.netty.channel.Channel;
+import io.netty.handler.codec.http.websocketx.PingWebSocketFrame;
+import io.netty.util.AttributeKey;
+import io.netty.util.HashedWheelTimer;
+import io.netty.util.Timeout;
+import io.netty.util.TimerTask;
+import io.netty.util.concurrent.DefaultThreadFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+// 服务端发起的 websocket 心跳
+// 所有连接分散到固定数量的桶里，整个节点只有一个 HashedWheelTimer 和一个轮转的 TimerTask，
+// 每次只检查一个桶：空闲超过 pingInterval 的发送 ping，超过 pingInterval + pongTimeout 的关闭
+@Singleton
+public class SocketHeartbeat {
+
+    private static final int BUCKETS = 64;
+
+    private static final AttributeKey<HeartbeatState> HEARTBEAT_STATE = AttributeKey.valueOf("gutty.heartbeat");
+
+    private final List<Set<HeartbeatState>> buckets = new ArrayList<>(BUCKETS);
+
+    @Inject
+    private SocketMetrics socketMetrics;
+
+    @Inject
+    @Named("gutty.websocket.pingInterval")
+    private Integer pingInterval;
+
+    @Inject
+    @Named("gutty.websocket.pongTimeout")
+    private Integer pongTimeout;
+
+    private volatile HashedWheelTimer timer;
+
+    public SocketHeartbeat() {
+        for (int ii = 0; ii < BUCKETS; ii++) {
+            buckets.add(ConcurrentHashMap.newKeySet());
+        }
+    }
+
+    public boolean isEnabled() {
+        return pingInterval > 0;
+    }
+
+    // 握手完成后登记
+    public void register(Channel channel) {
+        if (!isEnabled()) {
+            return;
+        }
+        startTimer();
+        HeartbeatState heartbeatState = new HeartbeatState(channel);
+        channel.attr(HEARTBEAT_STATE).set(heartbeatState);
+        Set<HeartbeatState> bucket = buckets.get((channel.id().hashCode() & 0x7FFFFFFF) % BUCKETS);
+        bucket.add(heartbeatState);
+        channel.closeFuture().addListener(future -> bucket.remove(heartbeatState));
+    }
+
+    // 收到任何帧都说明对端还活着
+    public void touch(Channel channel) {
+        HeartbeatState heartbeatState = channel.attr(HEARTBEAT_STATE).get();
+        if (heartbeatState != null) {
+            heartbeatState.lastReadNanos = System.nanoTime();
+        }
+    }
+
+    public int size() {
+        int size = 0;
+        for (Set<HeartbeatState> bucket : buckets) {
+            size += bucket.size();
+        }
+        return size;
+    }
+
+    private void startTimer() {
+        if (timer != null) {
+            return;
+        }
+        synchronized (this) {
+            if (timer == null) {
+                // 每个桶在 min(pingInterval, pongTimeout) 内被检查一次
+                long sweepNanos = TimeUnit.SECONDS.toNanos(pongTimeout > 0 ? Math.min(pingInterval, pongTimeout) : pingInterval);
+                long tickNanos = Math.max(sweepNanos / BUCKETS, TimeUnit.MILLISECONDS.toNanos(10));
+                HashedWheelTimer wheelTimer = new HashedWheelTimer(new DefaultThreadFactory("gutty-heartbeat", true), tickNanos, TimeUnit.NANOSECONDS, BUCKETS);
+                wheelTimer.newTimeout(new SweepTask(tickNanos), tickNanos, TimeUnit.NANOSECONDS);
+                timer = wheelTimer;
+            }
+        }
+    }
+
+    private class SweepTask implements TimerTask {
+
+        private final long tickNanos;
+
+        private int bucketIndex;
+
+        SweepTask(long tickNanos) {
+            this.tickNanos = tickNanos;
+        }
+
+        @Override
+        public void run(Timeout timeout) {
+            try {
+                sweep(buckets.get(bucketIndex));
+            }
+            finally {
+                bucketIndex = (bucketIndex + 1) % BUCKETS;
+                timeout.timer().newTimeout(this, tickNanos, TimeUnit.NANOSECONDS);
+            }
+        }
+
+        private void sweep(Set<HeartbeatState> bucket) {
+            long now = System.nanoTime();
+            long pingNanos = TimeUnit.SECONDS.toNanos(pingInterval);
+            long evictNanos = pingNanos + TimeUnit.SECONDS.toNanos(pongTimeout);
+            for (HeartbeatState heartbeatState : bucket) {
+                Channel channel = heartbeatState.channel;
+                long idleNanos = now - heartbeatState.lastReadNanos;
+                if (pongTimeout > 0 && idleNanos >= evictNanos) {
+                    bucket.remove(heartbeatState);
+                    socketMetrics.idleEvicted();
+                    channel.close();
+                }
+                else if (idleNanos >= pingNanos && channel.isActive()) {
+                    channel.writeAndFlush(new PingWebSocketFrame(), channel.voidPromise());
+                }
+            }
+        }
+    }
+
+    // 每个连接只保存 channel 和最后一次读到数据的时间
+    private static class HeartbeatState {
+        private final Channel channel;
+        private volatile long lastReadNanos;
+        HeartbeatState(Channel channel) {
+            this.channel = channel;
+            this.lastReadNanos = System.nanoTime();
+        }
+    }
+}
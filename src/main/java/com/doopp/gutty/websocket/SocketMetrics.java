@@ -0,0 +1,87 @@
+package com.doopp.gutty.websocket;
+
+import com.google.inject.Singleton;
+
+import java.util.concurrent.atomic.LongAdder;
+
+// websocket 的运行计数
+@Singleton
+public class SocketMetrics {
+
+    // 所有连接的发送队列里等待的帧数
+    private final LongAdder queuedFrames = new LongAdder();
+
+    // 因为队列满了被丢弃的帧数
+    private final LongAdder droppedFrames = new LongAdder();
+
+    // 因为消费太慢被断开的连接数
+    private final LongAdder slowConsumerDisconnects = new LongAdder();
+
+    // 心跳超时被关闭的连接数
+    private final LongAdder idleEvictions = new LongAdder();
+
+    // 被合并掉的 flush 次数
+    private final LongAdder coalescedFlushes = new LongAdder();
+
+    // 集群广播发布失败的批次数和消息数
+    private final LongAdder busPublishFailures = new LongAdder();
+
+    private final LongAdder busDroppedMessages = new LongAdder();
+
+    void frameQueued() {
+        queuedFrames.increment();
+    }
+
+    void frameDequeued() {
+        queuedFrames.decrement();
+    }
+
+    void frameDropped() {
+        droppedFrames.increment();
+    }
+
+    void slowConsumerDisconnected() {
+        slowConsumerDisconnects.increment();
+    }
+
+    void idleEvicted() {
+        idleEvictions.increment();
+    }
+
+    void flushCoalesced() {
+        coalescedFlushes.increment();
+    }
+
+    public void busPublishFailed(int messages) {
+        busPublishFailures.increment();
+        busDroppedMessages.add(messages);
+    }
+
+    public long getQueuedFrames() {
+        return queuedFrames.sum();
+    }
+
+    public long getDroppedFrames() {
+        return droppedFrames.sum();
+    }
+
+    public long getSlowConsumerDisconnects() {
+        return slowConsumerDisconnects.sum();
+    }
+
+    public long getIdleEvictions() {
+        return idleEvictions.sum();
+    }
+
+    public long getCoalescedFlushes() {
+        return coalescedFlushes.sum();
+    }
+
+    public long getBusPublishFailures() {
+        return busPublishFailures.sum();
+    }
+
+    public long getBusDroppedMessages() {
+        return busDroppedMessages.sum();
+    }
+}
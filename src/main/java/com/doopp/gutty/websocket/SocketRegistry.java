@@ -0,0 +1,159 @@
+package com.doopp.gutty.websocket;
+
+import com.google.inject.Singleton;
+import io.netty.channel.Channel;
+import io.netty.util.Attribute;
+import io.netty.util.AttributeKey;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+// 按 key 查找 websocket 连接，一个连接可以有多个索引（user, device, tenant ...）
+// 索引都是 ConcurrentHashMap，查询不加锁，连接关闭时自动移除
+@Singleton
+public class SocketRegistry {
+
+    private static final AttributeKey<Registrations> REGISTRATIONS = AttributeKey.valueOf("gutty.registrations");
+
+    // index => key => channels
+    private final ConcurrentMap<String, ConcurrentMap<String, Set<Channel>>> indexes = new ConcurrentHashMap<>();
+
+    private final LongAdder connectionCount = new LongAdder();
+
+    // 登记连接，例如 register(channel, "user", userId)
+    public void register(Channel channel, String index, String key) {
+        Registrations registrations = registrations(channel);
+        if (!registrations.add(index, key)) {
+            return;
+        }
+        // 在 compute 里添加，避免空集合在查找和添加之间被移除
+        indexes.computeIfAbsent(index, k -> new ConcurrentHashMap<>())
+                .compute(key, (k, channels) -> {
+                    if (channels == null) {
+                        channels = ConcurrentHashMap.newKeySet();
+                    }
+                    channels.add(channel);
+                    return channels;
+                });
+        // 登记的同时连接被关闭了
+        if (!channel.isOpen()) {
+            unregister(channel, index, key);
+        }
+    }
+
+    public void unregister(Channel channel, String index, String key) {
+        Registrations registrations = channel.attr(REGISTRATIONS).get();
+        if (registrations != null) {
+            registrations.remove(index, key);
+        }
+        remove(channel, index, key);
+    }
+
+    // 一个 key 下的所有连接
+    public Set<Channel> channels(String index, String key) {
+        ConcurrentMap<String, Set<Channel>> keyChannels = indexes.get(index);
+        if (keyChannels == null) {
+            return Collections.emptySet();
+        }
+        Set<Channel> channels = keyChannels.get(key);
+        return (channels == null) ? Collections.emptySet() : Collections.unmodifiableSet(channels);
+    }
+
+    // 批量遍历多个 key 的连接，用于定向推送
+    public void forEach(String index, Collection<String> keys, Consumer<Channel> consumer) {
+        ConcurrentMap<String, Set<Channel>> keyChannels = indexes.get(index);
+        if (keyChannels == null) {
+            return;
+        }
+        for (String key : keys) {
+            Set<Channel> channels = keyChannels.get(key);
+            if (channels != null) {
+                channels.forEach(consumer);
+            }
+        }
+    }
+
+    // 遍历一个索引下的所有连接
+    public void forEach(String index, Consumer<Channel> consumer) {
+        ConcurrentMap<String, Set<Channel>> keyChannels = indexes.get(index);
+        if (keyChannels != null) {
+            keyChannels.values().forEach(channels -> channels.forEach(consumer));
+        }
+    }
+
+    public boolean contains(String index, String key) {
+        ConcurrentMap<String, Set<Channel>> keyChannels = indexes.get(index);
+        return keyChannels != null && keyChannels.containsKey(key);
+    }
+
+    // 已登记的连接数
+    public long connectionCount() {
+        return connectionCount.sum();
+    }
+
+    // 一个索引下的 key 数
+    public int keyCount(String index) {
+        ConcurrentMap<String, Set<Channel>> keyChannels = indexes.get(index);
+        return (keyChannels == null) ? 0 : keyChannels.size();
+    }
+
+    private Registrations registrations(Channel channel) {
+        Attribute<Registrations> attribute = channel.attr(REGISTRATIONS);
+        Registrations registrations = attribute.get();
+        if (registrations != null) {
+            return registrations;
+        }
+        Registrations newRegistrations = new Registrations();
+        registrations = attribute.setIfAbsent(newRegistrations);
+        if (registrations != null) {
+            return registrations;
+        }
+        connectionCount.increment();
+        channel.closeFuture().addListener(future -> {
+            for (String[] indexKey : newRegistrations.clear()) {
+                remove(channel, indexKey[0], indexKey[1]);
+            }
+            connectionCount.decrement();
+        });
+        return newRegistrations;
+    }
+
+    private void remove(Channel channel, String index, String key) {
+        ConcurrentMap<String, Set<Channel>> keyChannels = indexes.get(index);
+        if (keyChannels == null) {
+            return;
+        }
+        keyChannels.computeIfPresent(key, (k, channels) -> {
+            channels.remove(channel);
+            return channels.isEmpty() ? null : channels;
+        });
+    }
+
+    // 一个连接登记过的 index/key，关闭时据此清理
+    private static class Registrations {
+
+        private final List<String[]> indexKeys = new ArrayList<>(2);
+
+        synchronized boolean add(String index, String key) {
+            for (String[] indexKey : indexKeys) {
+                if (indexKey[0].equals(index) && indexKey[1].equals(key)) {
+                    return false;
+                }
+            }
+            return indexKeys.add(new String[]{index, key});
+        }
+
+        synchronized void remove(String index, String key) {
+            indexKeys.removeIf(indexKey -> indexKey[0].equals(index) && indexKey[1].equals(key));
+        }
+
+        synchronized List<String[]> clear() {
+            List<String[]> cleared = new ArrayList<>(indexKeys);
+            indexKeys.clear();
+            return cleared;
+        }
+    }
+}
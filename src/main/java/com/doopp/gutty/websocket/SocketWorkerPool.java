@@ -0,0 +1,124 @@
+package com.doopp.gutty.websocket;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.google.inject.name.Named;
+import io.netty.channel.Channel;
+import io.netty.util.Attribute;
+import io.netty.util.AttributeKey;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Queue;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// 执行 @Blocking 的 websocket 方法
+// 每个连接一个 mailbox，同一时间只有一个 worker 在处理它，消息按到达的顺序执行，
+// 其他连接的消息在别的 worker 上并行，不会卡住 event loop
+@Singleton
+public class SocketWorkerPool {
+
+    private static final Logger logger = LoggerFactory.getLogger(SocketWorkerPool.class);
+
+    private static final AttributeKey<Mailbox> MAILBOX = AttributeKey.valueOf("gutty.mailbox");
+
+    // 一个 mailbox 每次最多连续执行的任务数，之后让出 worker
+    private static final int DRAIN_LIMIT = 16;
+
+    @Inject
+    @Named("gutty.websocket.workerThreads")
+    private Integer workerThreads;
+
+    private volatile ExecutorService executorService;
+
+    // 按连接顺序执行
+    public void execute(Channel channel, Runnable task) {
+        mailbox(channel).execute(task);
+    }
+
+    // 这个连接没有排队或正在执行的任务
+    public boolean isIdle(Channel channel) {
+        Mailbox mailbox = channel.attr(MAILBOX).get();
+        return mailbox == null || mailbox.isIdle();
+    }
+
+    private Mailbox mailbox(Channel channel) {
+        Attribute<Mailbox> attribute = channel.attr(MAILBOX);
+        Mailbox mailbox = attribute.get();
+        if (mailbox == null) {
+            Mailbox newMailbox = new Mailbox(executorService());
+            mailbox = attribute.setIfAbsent(newMailbox);
+            if (mailbox == null) {
+                mailbox = newMailbox;
+            }
+        }
+        return mailbox;
+    }
+
+    private ExecutorService executorService() {
+        if (executorService == null) {
+            synchronized (this) {
+                if (executorService == null) {
+                    int threads = (workerThreads > 0) ? workerThreads : Runtime.getRuntime().availableProcessors() * 2;
+                    executorService = Executors.newFixedThreadPool(threads, new DefaultThreadFactory("gutty-socket-worker", true));
+                }
+            }
+        }
+        return executorService;
+    }
+
+    private static class Mailbox implements Executor {
+
+        private final Executor executor;
+
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+        private final AtomicBoolean running = new AtomicBoolean();
+
+        Mailbox(Executor executor) {
+            this.executor = executor;
+        }
+
+        @Override
+        public void execute(Runnable task) {
+            tasks.add(task);
+            schedule();
+        }
+
+        boolean isIdle() {
+            return !running.get() && tasks.isEmpty();
+        }
+
+        private void schedule() {
+            if (running.compareAndSet(false, true)) {
+                executor.execute(this::drain);
+            }
+        }
+
+        private void drain() {
+            try {
+                for (int ii = 0; ii < DRAIN_LIMIT; ii++) {
+                    Runnable task = tasks.poll();
+                    if (task == null) {
+                        break;
+                    }
+                    try {
+                        task.run();
+                    }
+                    catch (Exception e) {
+                        logger.error("socket worker task failed", e);
+                    }
+                }
+            }
+            finally {
+                running.set(false);
+                // 还有任务，或者 running 置回之前又来了新任务
+                if (!tasks.isEmpty()) {
+                    schedule();
+                }
+            }
+        }
+    }
+}
@@ -5,6 +5,8 @@ import com.doopp.gutty.test.filter.ApiFilter;
 import com.doopp.gutty.Gutty;
 import com.doopp.gutty.json.JacksonMessageConverter;
 import com.doopp.gutty.view.FreemarkerViewResolver;
+import com.doopp.gutty.websocket.SocketBroadcaster;
+import com.doopp.gutty.websocket.SocketMetrics;
 import com.github.pagehelper.PageInterceptor;
 import com.google.inject.Provides;
 import com.google.inject.Singleton;
@@ -45,7 +47,13 @@ public class MVCApplication {
                             @Provides
                             @Named("userRedis")
                             public ShardedJedisHelper userRedis(JedisPoolConfig jedisPoolConfig, SerializableHelper serializableHelper, @Named("redis.user.servers") String userServers) {
-                                return new ShardedJedisHelper(userServers, jedisPoolConfig, serializableHelper);
+                                // 本地缓存 10000 个 key，60 秒
+                                return new ShardedJedisHelper(userServers, jedisPoolConfig, serializableHelper).enableNearCache(10000, 60);
+                            }
+                            @Singleton
+                            @Provides
+                            public RedisSocketBus redisSocketBus(JedisPoolConfig jedisPoolConfig, SocketBroadcaster socketBroadcaster, SocketMetrics socketMetrics, @Named("redis.bus.server") String busServer) {
+                                return new RedisSocketBus(busServer, jedisPoolConfig, socketBroadcaster, socketMetrics);
                             }
                             @Singleton
                             @Provides
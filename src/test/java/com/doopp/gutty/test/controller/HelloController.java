@@ -1,6 +1,8 @@
 package com.doopp.gutty.test.controller;
 
+import com.doopp.gutty.annotation.ChunkedView;
 import com.doopp.gutty.annotation.RequestAttribute;
+import com.doopp.gutty.annotation.ViewCache;
 import com.doopp.gutty.test.dao.UserDao;
 import com.doopp.gutty.test.pojo.User;
 import com.doopp.gutty.test.service.HelloService;
@@ -58,6 +60,22 @@ public class HelloController {
         return "hello.template";
     }
 
+    @GET
+    @Path("/template/cached")
+    @ViewCache(value = "hello", ttl = 30)
+    public String cachedTemplate(ModelMap modelMap) {
+        modelMap.addAttribute("hello", "hello cached freemarker !");
+        return "hello.template";
+    }
+
+    @GET
+    @Path("/template/chunked")
+    @ChunkedView
+    public String chunkedTemplate(ModelMap modelMap) {
+        modelMap.addAttribute("hello", "hello chunked freemarker !");
+        return "hello.template";
+    }
+
     @GET
     @Path("/hello")
     @Produces("application/json")
@@ -1,7 +1,11 @@
 package com.doopp.gutty.test.socket;
 
 import com.doopp.gutty.annotation.websocket.*;
+import com.doopp.gutty.redis.RedisSocketBus;
 import com.doopp.gutty.test.pojo.User;
+import com.doopp.gutty.websocket.SocketBroadcaster;
+import com.doopp.gutty.websocket.SocketRegistry;
+import com.google.inject.Inject;
 import io.netty.channel.Channel;
 import io.netty.handler.codec.http.FullHttpRequest;
 import io.netty.handler.codec.http.websocketx.BinaryWebSocketFrame;
@@ -17,16 +21,30 @@ public class HelloSocket {
 
     private static final Logger logger = LoggerFactory.getLogger(HelloSocket.class);
 
+    @Inject
+    private SocketBroadcaster socketBroadcaster;
+
+    @Inject
+    private SocketRegistry socketRegistry;
+
+    // 连同一个 redis.bus.server 启动两个实例，消息会广播到两边的 game 分组
+    @Inject
+    private RedisSocketBus redisSocketBus;
+
     @Open
     public void onConnect(Channel channel) {
         channel.writeAndFlush(new TextWebSocketFrame("you connected"));
+        socketBroadcaster.subscribe("game", channel);
+        socketRegistry.register(channel, "user", channel.id().asShortText());
     }
 
     @TextMessage
     public void onTextMessage(Channel channel) {
         channel.writeAndFlush(new TextWebSocketFrame("hello"));
+        redisSocketBus.publish("game", "someone said hello");
     }
 
+    @Blocking
     @TextMessage
     public void onJsonMessage(@JsonFrame User user) {
         logger.info("user {}", user.getNickName());